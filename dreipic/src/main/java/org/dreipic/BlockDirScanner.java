@@ -0,0 +1,155 @@
+package org.dreipic;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
+
+// Blocks are stored either flat (DIR/<38 hex>) or sharded by the first byte of the block id (DIR/xx/<38 hex>).
+public final class BlockDirScanner {
+    public static final int NAME_LENGTH = 19;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private BlockDirScanner() {
+    }
+
+    public static Stream<BlockFile> scan(Path dir) {
+        Preconditions.checkArgument(Files.isDirectory(dir), "Not a directory: %s", dir);
+
+        List<Path> shards = new ArrayList<>();
+        for (int i = 0; i < 256; ++i) {
+            Path shard = dir.resolve(shardName(i));
+            if (Files.isDirectory(shard)) {
+                shards.add(shard);
+            }
+        }
+
+        Stream<BlockFile> flat = list(dir, -1);
+        Stream<BlockFile> sharded = shards.parallelStream().flatMap(shard -> {
+            int idx = parseHex(shard.getFileName().toString(), 0, 2);
+            return list(shard, idx);
+        });
+        return Stream.concat(flat, sharded);
+    }
+
+    public static Path blockPath(Path dir, byte[] blockId, boolean sharded) {
+        Preconditions.checkArgument(blockId.length == NAME_LENGTH + 1, "%s", blockId.length);
+
+        char[] chars = new char[NAME_LENGTH * 2];
+        for (int i = 0; i < NAME_LENGTH; ++i) {
+            int v = blockId[i + 1] & 0xFF;
+            chars[i * 2] = HEX[v >>> 4];
+            chars[i * 2 + 1] = HEX[v & 0xF];
+        }
+        String name = new String(chars);
+
+        return sharded ? dir.resolve(shardName(blockId[0] & 0xFF)).resolve(name) : dir.resolve(name);
+    }
+
+    public static byte[] parseName(String name) {
+        if (name.length() != NAME_LENGTH * 2) {
+            return null;
+        }
+
+        byte[] res = new byte[NAME_LENGTH];
+        for (int i = 0; i < NAME_LENGTH; ++i) {
+            int v = parseHex(name, i * 2, 2);
+            if (v == -1) {
+                return null;
+            }
+            res[i] = (byte) v;
+        }
+        return res;
+    }
+
+    private static Stream<BlockFile> list(Path dir, int shard) {
+        DirectoryStream<Path> stream;
+        try {
+            stream = Files.newDirectoryStream(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return StreamSupport.stream(stream.spliterator(), false)
+                .onClose(() -> {
+                    try {
+                        stream.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .map(path -> toBlockFile(path, shard))
+                .filter(Objects::nonNull);
+    }
+
+    private static BlockFile toBlockFile(Path path, int shard) {
+        String name = path.getFileName().toString();
+        if (name.startsWith(".")) {
+            return null;
+        }
+
+        byte[] key = parseName(name);
+        if (key == null) {
+            if (shard == -1 && name.length() == 2 && parseHex(name, 0, 2) != -1) {
+                return null;
+            }
+            throw new IllegalStateException("Unexpected file in block directory: " + path);
+        }
+        return new BlockFile(path, key, shard);
+    }
+
+    private static String shardName(int shard) {
+        return new String(new char[]{ HEX[shard >>> 4], HEX[shard & 0xF] });
+    }
+
+    private static int parseHex(String s, int ofs, int len) {
+        int v = 0;
+        for (int i = 0; i < len; ++i) {
+            char c = s.charAt(ofs + i);
+            int d;
+            if (c >= '0' && c <= '9') {
+                d = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                d = c - 'a' + 10;
+            } else {
+                return -1;
+            }
+            v = v << 4 | d;
+        }
+        return v;
+    }
+
+    public static final class BlockFile {
+        public final Path path;
+        public final byte[] name;
+        public final int shard;
+
+        BlockFile(Path path, byte[] name, int shard) {
+            this.path = path;
+            this.name = name;
+            this.shard = shard;
+        }
+
+        public boolean isSharded() {
+            return shard != -1;
+        }
+
+        public byte[] blockId() {
+            Verify.verify(isSharded(), "Flat block file has no full id: %s", path);
+            byte[] id = new byte[NAME_LENGTH + 1];
+            id[0] = (byte) shard;
+            System.arraycopy(name, 0, id, 1, NAME_LENGTH);
+            return id;
+        }
+    }
+}
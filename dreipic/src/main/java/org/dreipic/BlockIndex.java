@@ -0,0 +1,610 @@
+package org.dreipic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import org.dreipic.struct.MappedMetaFile;
+import org.dreipic.util.DecryptUtils;
+import org.dreipic.util.OrderedWorkers;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.UnsignedBytes;
+
+public final class BlockIndex {
+    public static final String FILE_NAME = ".blockindex";
+
+    private static final int SIGN = 0x3C8E1B5D;
+    private static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 4 + 4 + 32 + 4 + 4 + 4;
+
+    // Transaction record: id, length and modification time of the meta file it was read from.
+    private static final int TX_RECORD = 24;
+
+    // Block record: blockId[1..20), blockId[0], data hash, block index, outer size, inner size, inner hash.
+    // Sorting by the rotated id lets a block file name (the id without its first byte) be found by prefix.
+    private static final int BLOCK_RECORD = 104;
+    private static final int BLOCK_KEY = 20;
+    private static final int BLOCK_HASH = 20;
+    private static final int BLOCK_IDX = 52;
+    private static final int BLOCK_OUTER_SIZE = 56;
+    private static final int BLOCK_INNER_SIZE = 64;
+    private static final int BLOCK_INNER_HASH = 72;
+
+    // Data record: hash, size, transaction, first ref, block count.
+    private static final int DATA_RECORD = 56;
+    private static final int DATA_SIZE = 32;
+    private static final int DATA_TX = 40;
+    private static final int DATA_FIRST_REF = 48;
+    private static final int DATA_BLOCK_COUNT = 52;
+
+    private static final Comparator<byte[]> KEY_ORDER = UnsignedBytes.lexicographicalComparator();
+
+    private final ByteBuffer buf;
+    private final byte[] storageId;
+    private final long[] transactions;
+    private final int blockCount;
+    private final int dataCount;
+    private final int blocksPos;
+    private final int datasPos;
+    private final int refsPos;
+
+    private BlockIndex(ByteBuffer buf) {
+        this.buf = buf;
+
+        Verify.verify(buf.getInt(0) == SIGN, "Not a block index");
+        Verify.verify(buf.getInt(4) == VERSION, "Unsupported block index version %s", buf.getInt(4));
+
+        storageId = new byte[32];
+        ByteBuffer b = buf.duplicate();
+        b.position(8);
+        b.get(storageId);
+
+        int txCount = b.getInt();
+        blockCount = b.getInt();
+        dataCount = b.getInt();
+
+        transactions = new long[txCount];
+        for (int i = 0; i < txCount; ++i) {
+            transactions[i] = b.getLong();
+            b.position(b.position() + TX_RECORD - 8);
+        }
+
+        blocksPos = b.position();
+        datasPos = blocksPos + blockCount * BLOCK_RECORD;
+        refsPos = datasPos + dataCount * DATA_RECORD;
+        Verify.verify(refsPos + blockCount * 4 == buf.capacity(), "Block index truncated");
+    }
+
+    public static BlockIndex forMetaDir(File metaDir) {
+        return forMetaDir(metaDir, null);
+    }
+
+    public static BlockIndex forMetaDir(File metaDir, byte[] key) {
+        return forMetaDir(metaDir, DreipicListFiles.getMetaFiles(metaDir), file -> DreipicListFiles.mapMeta(file, key));
+    }
+
+    public static BlockIndex forMetaDir(File metaDir, Map<Long, File> metaFiles, Function<File, MappedMetaFile> reader) {
+        File file = new File(metaDir, FILE_NAME);
+        if (metaDir.canWrite()) {
+            return update(file, metaFiles, reader);
+        }
+
+        // A read-only dump: an index left there is used if it is current, otherwise one is built in memory.
+        if (file.isFile()) {
+            Map<Long, long[]> stamps = readStamps(file);
+            if (stamps != null && stamps.keySet().equals(metaFiles.keySet()) && isAppend(stamps, metaFiles)) {
+                return open(file);
+            }
+        }
+        return build(metaFiles, reader);
+    }
+
+    public static BlockIndex open(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            Verify.verify(size >= HEADER_SIZE && size <= Integer.MAX_VALUE, "Bad block index size: %s", size);
+            return new BlockIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static BlockIndex build(Map<Long, File> metaFiles, Function<File, MappedMetaFile> reader) {
+        Merge merge = new Merge(null);
+        merge.addAll(metaFiles, reader);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            merge.write(out);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new BlockIndex(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    public static BlockIndex update(File file, Map<Long, File> metaFiles, Function<File, MappedMetaFile> reader) {
+        // Only metas of transactions after all indexed ones are merged in. A meta that was removed, rewritten or
+        // inserted before the end makes the index stale (records of gone datas, or a data's first transaction
+        // moving back), so the index is rebuilt from scratch. So is an index of an older version.
+        Map<Long, long[]> stamps = file.exists() ? readStamps(file) : null;
+        if (stamps != null && !isAppend(stamps, metaFiles)) {
+            stamps = null;
+        }
+
+        Map<Long, File> newMetas = new TreeMap<>(metaFiles);
+        if (stamps != null) {
+            newMetas.keySet().removeAll(stamps.keySet());
+            if (newMetas.isEmpty()) {
+                return open(file);
+            }
+        }
+
+        // The old index is read into the heap, not mapped, so that the file can be replaced on every platform.
+        BlockIndex old = null;
+        if (stamps != null) {
+            try {
+                old = new BlockIndex(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        Merge merge = new Merge(old);
+        merge.addAll(newMetas, reader);
+
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 20));
+            merge.write(out);
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            tempFile.delete();
+            throw new UncheckedIOException(e);
+        }
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return open(file);
+    }
+
+    // Whether the metas are the indexed ones, unchanged, plus only transactions after the last indexed one.
+    private static boolean isAppend(Map<Long, long[]> stamps, Map<Long, File> metaFiles) {
+        long last = Long.MIN_VALUE;
+        for (Map.Entry<Long, long[]> entry : stamps.entrySet()) {
+            File metaFile = metaFiles.get(entry.getKey());
+            if (metaFile == null || !Arrays.equals(stamp(metaFile), entry.getValue())) {
+                return false;
+            }
+            last = Math.max(last, entry.getKey());
+        }
+        for (long tx : metaFiles.keySet()) {
+            if (!stamps.containsKey(tx) && tx < last) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long[] stamp(File metaFile) {
+        return new long[] { metaFile.length(), metaFile.lastModified() };
+    }
+
+    private static Map<Long, long[]> readStamps(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Verify.verify(in.readInt() == SIGN, "Not a block index");
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            ByteStreams.skipFully(in, 32);
+            int txCount = in.readInt();
+            ByteStreams.skipFully(in, 8);
+            Map<Long, long[]> res = new TreeMap<>();
+            for (int i = 0; i < txCount; ++i) {
+                long tx = in.readLong();
+                res.put(tx, new long[] { in.readLong(), in.readLong() });
+            }
+            return res;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int writeOldData(DataOutputStream out, BlockIndex old, int d, int[] oldToNew, int[] refs, int refCount)
+            throws IOException
+    {
+        int n = old.dataBlockCount(d);
+        writeData(out, old.dataHash(d), old.dataSize(d), old.dataTransaction(d), refCount, n);
+        for (int i = 0; i < n; ++i) {
+            refs[refCount++] = oldToNew[old.dataBlock(d, i)];
+        }
+        return refCount;
+    }
+
+    private static void writeData(DataOutputStream out, byte[] hash, long size, long tx, int firstRef, int blockCount)
+            throws IOException
+    {
+        out.write(hash);
+        out.writeLong(size);
+        out.writeLong(tx);
+        out.writeInt(firstRef);
+        out.writeInt(blockCount);
+    }
+
+    private static byte[] toKey(byte[] blockId) {
+        Preconditions.checkArgument(blockId.length == 20, "%s", blockId.length);
+        byte[] key = new byte[BLOCK_KEY];
+        System.arraycopy(blockId, 1, key, 0, 19);
+        key[19] = blockId[0];
+        return key;
+    }
+
+    public byte[] storageId() {
+        return storageId.clone();
+    }
+
+    public long[] transactions() {
+        return transactions.clone();
+    }
+
+    public int blockCount() {
+        return blockCount;
+    }
+
+    public int dataCount() {
+        return dataCount;
+    }
+
+    public int findBlock(byte[] blockId) {
+        Preconditions.checkArgument(blockId.length == 20, "%s", blockId.length);
+        return findKey(toKey(blockId), BLOCK_KEY);
+    }
+
+    public int findBlockByName(byte[] name) {
+        Preconditions.checkArgument(name.length == 19, "%s", name.length);
+        return findKey(name, 19);
+    }
+
+    public byte[] blockId(int b) {
+        int p = blockPos(b);
+        byte[] id = new byte[20];
+        id[0] = buf.get(p + 19);
+        for (int i = 0; i < 19; ++i) {
+            id[i + 1] = buf.get(p + i);
+        }
+        return id;
+    }
+
+    public byte[] blockDataHash(int b) {
+        return getBytes(blockPos(b) + BLOCK_HASH, 32);
+    }
+
+    public int blockIdx(int b) {
+        return buf.getInt(blockPos(b) + BLOCK_IDX);
+    }
+
+    public long blockOuterSize(int b) {
+        return buf.getLong(blockPos(b) + BLOCK_OUTER_SIZE);
+    }
+
+    public long blockInnerSize(int b) {
+        return buf.getLong(blockPos(b) + BLOCK_INNER_SIZE);
+    }
+
+    public byte[] blockInnerHash(int b) {
+        return getBytes(blockPos(b) + BLOCK_INNER_HASH, 32);
+    }
+
+    public int findData(byte[] hash) {
+        Preconditions.checkArgument(hash.length == 32, "%s", hash.length);
+
+        int lo = 0;
+        int hi = dataCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(dataPos(mid), hash, 32);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public byte[] dataHash(int d) {
+        return getBytes(dataPos(d), 32);
+    }
+
+    public long dataSize(int d) {
+        return buf.getLong(dataPos(d) + DATA_SIZE);
+    }
+
+    public long dataTransaction(int d) {
+        return buf.getLong(dataPos(d) + DATA_TX);
+    }
+
+    public int dataBlockCount(int d) {
+        return buf.getInt(dataPos(d) + DATA_BLOCK_COUNT);
+    }
+
+    public int dataBlock(int d, int i) {
+        Preconditions.checkElementIndex(i, dataBlockCount(d));
+        int ref = buf.getInt(dataPos(d) + DATA_FIRST_REF) + i;
+        return buf.getInt(refsPos + ref * 4);
+    }
+
+    private int findKey(byte[] key, int len) {
+        int lo = 0;
+        int hi = blockCount - 1;
+        int res = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareKey(mid, key, len);
+            if (c < 0) {
+                lo = mid + 1;
+            } else {
+                if (c == 0) {
+                    res = mid;
+                }
+                hi = mid - 1;
+            }
+        }
+        return res;
+    }
+
+    private int compareKey(int b, byte[] key, int len) {
+        return compare(blockPos(b), key, len);
+    }
+
+    private int compare(int pos, byte[] key, int len) {
+        for (int i = 0; i < len; ++i) {
+            int c = UnsignedBytes.compare(buf.get(pos + i), key[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    private void copyBlock(int b, byte[] record) {
+        int p = blockPos(b);
+        for (int i = 0; i < BLOCK_RECORD; ++i) {
+            record[i] = buf.get(p + i);
+        }
+    }
+
+    private byte[] getBytes(int pos, int len) {
+        byte[] res = new byte[len];
+        for (int i = 0; i < len; ++i) {
+            res[i] = buf.get(pos + i);
+        }
+        return res;
+    }
+
+    private int blockPos(int b) {
+        Preconditions.checkElementIndex(b, blockCount);
+        return blocksPos + b * BLOCK_RECORD;
+    }
+
+    private int dataPos(int d) {
+        Preconditions.checkElementIndex(d, dataCount);
+        return datasPos + d * DATA_RECORD;
+    }
+
+    // The records of an old index, if any, with those of new metas merged in.
+    private static final class Merge {
+        final BlockIndex old;
+        final TreeMap<Long, long[]> transactions = new TreeMap<>();
+        final TreeMap<byte[], NewData> newDatas = new TreeMap<>(KEY_ORDER);
+        final TreeMap<byte[], NewBlock> newBlocks = new TreeMap<>(KEY_ORDER);
+        byte[] storageId;
+
+        Merge(BlockIndex old) {
+            this.old = old;
+            if (old != null) {
+                storageId = old.storageId;
+                for (int i = 0; i < old.transactions.length; ++i) {
+                    int p = HEADER_SIZE + i * TX_RECORD;
+                    transactions.put(old.transactions[i], new long[] { old.buf.getLong(p + 8), old.buf.getLong(p + 16) });
+                }
+            }
+        }
+
+        // Metas are read a few at a time and dropped once their records are copied out.
+        void addAll(Map<Long, File> metaFiles, Function<File, MappedMetaFile> reader) {
+            List<Map.Entry<Long, File>> entries = new ArrayList<>(metaFiles.entrySet());
+            int threads = Runtime.getRuntime().availableProcessors();
+            int[] next = new int[1];
+            OrderedWorkers.map("Index", threads, 2 * threads, entries, entry -> reader.apply(entry.getValue()), meta -> {
+                Verify.verifyNotNull(meta, "Failed to read meta");
+                Map.Entry<Long, File> entry = entries.get(next[0]++);
+                add(entry.getKey(), stamp(entry.getValue()), meta);
+            });
+        }
+
+        private void add(long tx, long[] stamp, MappedMetaFile meta) {
+            byte[] metaStorageId = new byte[32];
+            meta.getStorageId(metaStorageId);
+            if (storageId == null) {
+                storageId = metaStorageId;
+            }
+            Verify.verify(Arrays.equals(storageId, metaStorageId), "Metas from different storages");
+            Verify.verify(transactions.put(tx, stamp) == null, "Duplicate transaction: %s", tx);
+
+            // Only datas that are new to the index are copied out of the metas.
+            byte[] hash = new byte[32];
+            MappedMetaFile.Entry data = meta.entries();
+            while (data.next()) {
+                if (!data.isData()) {
+                    continue;
+                }
+                data.getHash(hash);
+                int n = data.blockCount();
+
+                if (old != null) {
+                    int d = old.findData(hash);
+                    if (d != -1) {
+                        Verify.verify(old.dataBlockCount(d) == n, "Block count mismatch");
+                        continue;
+                    }
+                }
+
+                NewData prev = newDatas.get(hash);
+                if (prev != null) {
+                    Verify.verify(prev.blocks.length == n, "Block count mismatch");
+                    prev.tx = Math.min(prev.tx, tx);
+                    continue;
+                }
+
+                byte[] dataHash = hash.clone();
+                NewData newData = new NewData(dataHash, data.size(), tx, n);
+                for (int i = 0; i < n; ++i) {
+                    byte[] key = toKey(DecryptUtils.getBlockId(storageId, dataHash, i));
+                    byte[] innerHash = new byte[32];
+                    data.getBlockInnerHash(i, innerHash);
+                    NewBlock block = new NewBlock(key, dataHash, i, data.blockOuterSize(i), data.blockInnerSize(i), innerHash);
+                    Verify.verify(newBlocks.put(key, block) == null, "Block id collision");
+                    Verify.verify(old == null || old.findKey(key, BLOCK_KEY) == -1, "Block id collision");
+                    newData.blocks[i] = block;
+                }
+                newDatas.put(dataHash, newData);
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            Verify.verify(storageId != null, "No metas to index");
+            int oldBlockCount = old == null ? 0 : old.blockCount;
+            int oldDataCount = old == null ? 0 : old.dataCount;
+            long blockCount = (long) oldBlockCount + newBlocks.size();
+            long dataCount = (long) oldDataCount + newDatas.size();
+            long size = HEADER_SIZE + transactions.size() * (long) TX_RECORD
+                    + blockCount * BLOCK_RECORD + dataCount * DATA_RECORD + blockCount * 4;
+            Verify.verify(size <= Integer.MAX_VALUE, "Block index too large");
+
+            out.writeInt(SIGN);
+            out.writeInt(VERSION);
+            out.write(storageId);
+            out.writeInt(transactions.size());
+            out.writeInt((int) blockCount);
+            out.writeInt((int) dataCount);
+            for (Map.Entry<Long, long[]> entry : transactions.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue()[0]);
+                out.writeLong(entry.getValue()[1]);
+            }
+
+            int[] oldToNew = new int[oldBlockCount];
+            byte[] record = new byte[BLOCK_RECORD];
+            int pos = 0;
+            int o = 0;
+            for (NewBlock block : newBlocks.values()) {
+                while (o < oldBlockCount && old.compareKey(o, block.key, BLOCK_KEY) < 0) {
+                    old.copyBlock(o, record);
+                    out.write(record);
+                    oldToNew[o++] = pos++;
+                }
+                block.write(out);
+                block.pos = pos++;
+            }
+            while (o < oldBlockCount) {
+                old.copyBlock(o, record);
+                out.write(record);
+                oldToNew[o++] = pos++;
+            }
+
+            int[] refs = new int[(int) blockCount];
+            int refCount = 0;
+            int d = 0;
+            for (NewData data : newDatas.values()) {
+                while (d < oldDataCount && KEY_ORDER.compare(old.dataHash(d), data.hash) < 0) {
+                    refCount = writeOldData(out, old, d++, oldToNew, refs, refCount);
+                }
+                writeData(out, data.hash, data.size, data.tx, refCount, data.blocks.length);
+                for (NewBlock block : data.blocks) {
+                    refs[refCount++] = block.pos;
+                }
+            }
+            while (d < oldDataCount) {
+                refCount = writeOldData(out, old, d++, oldToNew, refs, refCount);
+            }
+            Verify.verify(refCount == refs.length);
+
+            for (int ref : refs) {
+                out.writeInt(ref);
+            }
+        }
+    }
+
+    private static final class NewData {
+        final byte[] hash;
+        final long size;
+        final NewBlock[] blocks;
+        long tx;
+
+        NewData(byte[] hash, long size, long tx, int blockCount) {
+            this.hash = hash;
+            this.size = size;
+            this.tx = tx;
+            blocks = new NewBlock[blockCount];
+        }
+    }
+
+    private static final class NewBlock {
+        final byte[] key;
+        final byte[] dataHash;
+        final int blockIdx;
+        final long outerSize;
+        final long innerSize;
+        final byte[] innerHash;
+        int pos;
+
+        NewBlock(byte[] key, byte[] dataHash, int blockIdx, long outerSize, long innerSize, byte[] innerHash) {
+            this.key = key;
+            this.dataHash = dataHash;
+            this.blockIdx = blockIdx;
+            this.outerSize = outerSize;
+            this.innerSize = innerSize;
+            this.innerHash = innerHash;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(key);
+            out.write(dataHash);
+            out.writeInt(blockIdx);
+            out.writeLong(outerSize);
+            out.writeLong(innerSize);
+            out.write(innerHash);
+        }
+    }
+}
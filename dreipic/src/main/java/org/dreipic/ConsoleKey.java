@@ -0,0 +1,52 @@
+package org.dreipic;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+
+import org.dreipic.util.MnemonicEncoder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Verify;
+
+final class ConsoleKey {
+    private ConsoleKey() {
+    }
+
+    static byte[] readKey() {
+        String line = readLine("Data key (24 words): ");
+        Verify.verifyNotNull(line, "No key entered");
+
+        String[] words = line.trim().split("\\s+");
+        Verify.verify(words.length == 24, "Expected 24 words, got %s", words.length);
+
+        int[] nums = new int[words.length];
+        for (int i = 0; i < words.length; ++i) {
+            Integer num = MnemonicEncoder.wordToIntOpt(words[i]);
+            Verify.verifyNotNull(num, "Unknown word #%s", i + 1);
+            nums[i] = num;
+        }
+
+        byte[] key = MnemonicEncoder.decode32BytesEx(nums);
+        Verify.verifyNotNull(key, "Checksum missmatch");
+        return key;
+    }
+
+    private static String readLine(String prompt) {
+        Console console = System.console();
+        if (console != null) {
+            char[] chars = console.readPassword("%s", prompt);
+            return chars == null ? null : new String(chars);
+        }
+
+        System.err.print(prompt);
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, Charsets.UTF_8));
+            return reader.readLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
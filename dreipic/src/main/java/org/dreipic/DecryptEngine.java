@@ -0,0 +1,210 @@
+package org.dreipic;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dreipic.util.DecryptUtils;
+import org.dreipic.util.Decryptor;
+import org.dreipic.util.StageTimes;
+import org.dreipic.util.ThreadUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
+
+public final class DecryptEngine {
+    public static final String JOURNAL_FILE_NAME = ".decrypt_journal";
+    private static final String TEMP_FILE_SUFFIX = ".dectmp";
+    private static final String LEGACY_TEMP_FILE_NAME = ".tempfile";
+
+    private final byte[] key;
+    private final int threads;
+
+    public DecryptEngine(byte[] key, int threads) {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkArgument(threads > 0, "%s", threads);
+        this.key = key.clone();
+        this.threads = threads;
+    }
+
+    public interface Listener {
+        void onProgress(int done, int total);
+
+        void onFailure(File file, Throwable e);
+
+        // Read, decrypt and write busy times of the finished run, as StageTimes lines.
+        void onFinish(List<String> stageReport);
+    }
+
+    public boolean decryptDir(File dir, Listener listener) {
+        File journalFile = new File(dir, JOURNAL_FILE_NAME);
+        Set<String> finished = readJournal(journalFile);
+
+        List<File> files = new ArrayList<>();
+        collectFiles(dir, "", finished, files);
+
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        AtomicBoolean failed = new AtomicBoolean();
+        listener.onProgress(0, files.size());
+
+        StageTimes times = new StageTimes();
+        StageTimes.Stage read = times.stage("Read", threads);
+        StageTimes.Stage decrypt = times.stage("Decrypt", threads);
+        StageTimes.Stage write = times.stage("Write", threads);
+
+        try (Writer journal = Files.newBufferedWriter(journalFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))
+        {
+            Runnable worker = () -> {
+                try (Decryptor decryptor = new Decryptor(key)) {
+                    for (;;) {
+                        int idx = next.getAndIncrement();
+                        if (idx >= files.size() || failed.get()) {
+                            break;
+                        }
+
+                        File file = files.get(idx);
+                        try {
+                            decryptFile(decryptor, file, read, decrypt, write);
+                            appendJournal(journal, dir, file);
+                        } catch (Throwable e) {
+                            if (!failed.getAndSet(true)) {
+                                listener.onFailure(file, e);
+                            }
+                            break;
+                        }
+
+                        int doneNow = done.incrementAndGet();
+                        if (!failed.get()) {
+                            listener.onProgress(doneNow, files.size());
+                        }
+                    }
+                }
+            };
+
+            ThreadUtils.runWorkers("Decrypt", threads, worker);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        listener.onFinish(times.report());
+        return !failed.get();
+    }
+
+    // Decryption runs between the file streams, so it gets whatever time is not spent in them.
+    private static void decryptFile(
+            Decryptor decryptor,
+            File file,
+            StageTimes.Stage read,
+            StageTimes.Stage decrypt,
+            StageTimes.Stage write) throws IOException
+    {
+        long startTime = System.nanoTime();
+        if (isDecrypted(file)) {
+            read.add(System.nanoTime() - startTime);
+            return;
+        }
+
+        File tempFile = new File(file.getParentFile(), file.getName() + TEMP_FILE_SUFFIX);
+
+        boolean dec;
+        long readTime;
+        long writeTime;
+        long decryptStartTime = System.nanoTime();
+        try (StageTimes.TimedInputStream in = new StageTimes.TimedInputStream(new FileInputStream(file))) {
+            try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+                StageTimes.TimedOutputStream out = new StageTimes.TimedOutputStream(fileOut);
+                dec = decryptor.decryptFile(in, out);
+                out.flush();
+                readTime = in.nanos();
+                writeTime = out.nanos();
+                decrypt.add(System.nanoTime() - decryptStartTime - readTime - writeTime);
+
+                long t = System.nanoTime();
+                fileOut.getFD().sync();
+                writeTime += System.nanoTime() - t;
+            }
+        }
+
+        Verify.verify(dec, "%s", file);
+        long t = System.nanoTime();
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writeTime += System.nanoTime() - t;
+
+        read.add(decryptStartTime - startTime + readTime);
+        write.add(writeTime);
+    }
+
+    private static boolean isDecrypted(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            DataInputStream dataIn = new DataInputStream(in);
+            return dataIn.readInt() == DecryptUtils.DECRYPT_SIGN;
+        }
+    }
+
+    private static void appendJournal(Writer journal, File dir, File file) throws IOException {
+        String name = relativeName(dir, file);
+        synchronized (journal) {
+            journal.write(name);
+            journal.write('\n');
+            journal.flush();
+        }
+    }
+
+    private static Set<String> readJournal(File journalFile) {
+        Set<String> res = new HashSet<>();
+        if (!journalFile.exists()) {
+            return res;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    res.add(line);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return res;
+    }
+
+    private static void collectFiles(File dir, String prefix, Set<String> finished, List<File> files) {
+        File[] subs = dir.listFiles();
+        Verify.verifyNotNull(subs, "%s", dir);
+
+        for (File sub : subs) {
+            String name = sub.getName();
+            String relName = prefix + name;
+            if (sub.isDirectory()) {
+                collectFiles(sub, relName + "/", finished, files);
+            } else if (name.endsWith(TEMP_FILE_SUFFIX) || name.equals(LEGACY_TEMP_FILE_NAME)) {
+                Verify.verify(sub.delete(), "%s", sub);
+            } else if (!name.startsWith(".") && !finished.contains(relName)) {
+                files.add(sub);
+            }
+        }
+    }
+
+    private static String relativeName(File dir, File file) {
+        return dir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+}
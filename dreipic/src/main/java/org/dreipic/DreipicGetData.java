@@ -1,155 +1,366 @@
 package org.dreipic;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.security.DigestOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import javax.xml.bind.DatatypeConverter;
 
-import org.dreipic.struct.StructBlockFile;
-import org.dreipic.struct.StructMeta;
-import org.dreipic.struct.StructMetaData;
-import org.dreipic.util.DecryptUtils;
+import org.dreipic.struct.MappedBlockFile;
+import org.dreipic.util.AssemblyWriter;
+import org.dreipic.util.Decryptor;
 import org.dreipic.util.DigestUtils;
+import org.dreipic.util.FixedKeyIntMap;
+import org.dreipic.util.ThreadUtils;
 
 import com.google.common.base.Verify;
-import com.google.common.collect.Ordering;
+import com.google.common.base.VerifyException;
 
 public final class DreipicGetData {
+    private static final int SMALL_BATCH_SIZE = 64;
+
     public static void main(String[] args) throws IOException {
-        if (args.length != 3) {
-            System.err.println("Usage: META_DIR BLOCK_DIR DST_DIR");
+        boolean encrypted = args.length > 0 && args[0].equals("-k");
+        if (encrypted) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+
+        if (args.length != 3 && args.length != 4) {
+            System.err.println("Usage: [-k] META_DIR BLOCK_DIR DST_DIR [THREADS]");
+            System.err.println("  -k  metas and blocks may still be encrypted, read the key from the console");
             System.exit(1);
         }
 
         File metaDir = new File(args[0]);
         File blockDir = new File(args[1]);
         File dstDir = new File(args[2]);
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
 
-        Map<String, List<String>> dataMap = new HashMap<>();
-        Map<String, String> blockMap = new HashMap<>();
-        loadMetaData(metaDir, dataMap, blockMap);
+        byte[] key = encrypted ? ConsoleKey.readKey() : null;
 
-        Map<String, File> blockFiles = getBlockFiles(blockDir);
+        BlockIndex index = openIndex(metaDir, key);
+        BlockFiles blockFiles = BlockFiles.scan(blockDir.toPath(), index);
 
-        Set<String> blockDatas = new HashSet<>();
-        for (String blockId : blockFiles.keySet()) {
-            String hash = blockMap.get(blockId);
-            Verify.verifyNotNull(hash, "Unknown block: %s", blockId);
-            blockDatas.add(hash);
-        }
+        BitSet blockDatas = new BitSet(index.dataCount());
+        blockFiles.map.forEach((keys, off, b) -> blockDatas.set(index.findData(index.blockDataHash(b))));
 
-        System.out.printf("Found %,d blocks for %,d datas\n", blockFiles.size(), blockDatas.size());
+        System.out.printf("Found %,d blocks for %,d datas\n", blockFiles.map.size(), blockDatas.cardinality());
 
-        for (String hash : Ordering.natural().sortedCopy(blockDatas)) {
-            mergeBlocks(dstDir, dataMap, blockFiles, hash);
+        int[] datas = blockDatas.stream().toArray();
+        boolean ok = mergeAll(dstDir, key, index, blockFiles, datas, threads);
+        if (!ok) {
+            System.exit(2);
         }
     }
 
-    private static void mergeBlocks(
+    static BlockIndex openIndex(File metaDir, byte[] key) {
+        BlockIndex index = BlockIndex.forMetaDir(metaDir, key);
+        System.out.printf("Index: %,d transactions, %,d datas, %,d blocks\n",
+                index.transactions().length, index.dataCount(), index.blockCount());
+        return index;
+    }
+
+    static boolean mergeAll(
             File dstDir,
-            Map<String, List<String>> dataMap,
-            Map<String, File> blockFiles,
-            String hash) throws IOException
+            byte[] key,
+            BlockIndex index,
+            BlockFiles blockFiles,
+            int[] datas,
+            int threads)
     {
-        List<String> blockIds = dataMap.get(hash);
-        Verify.verifyNotNull(blockIds);
+        Output output = new Output(datas.length);
+
+        // A batch holds up to SMALL_BATCH_SIZE single-block datas, or one block of a bigger data.
+        // The blocks of a bigger data are spread over all workers and written at their own offsets.
+        List<List<Unit>> batches = new ArrayList<>();
+        List<Unit> small = new ArrayList<>();
+        for (int i = 0; i < datas.length; ++i) {
+            DataTask task = prepare(dstDir, index, blockFiles, datas[i], i, output);
+            if (task == null) {
+                continue;
+            }
+
+            if (task.files.length <= 1) {
+                small.add(new Unit(task, -1));
+                if (small.size() >= SMALL_BATCH_SIZE) {
+                    batches.add(small);
+                    small = new ArrayList<>();
+                }
+            } else {
+                for (int b = 0; b < task.files.length; ++b) {
+                    batches.add(Collections.singletonList(new Unit(task, b)));
+                }
+            }
+        }
+        if (!small.isEmpty()) {
+            batches.add(small);
+        }
+
+        AtomicInteger nextBatch = new AtomicInteger();
+
+        ThreadUtils.runWorkers("Merge", threads, () -> {
+            try (Decryptor decryptor = key == null ? null : new Decryptor(key)) {
+                for (;;) {
+                    int b = nextBatch.getAndIncrement();
+                    if (b >= batches.size()) {
+                        break;
+                    }
+
+                    for (Unit unit : batches.get(b)) {
+                        if (unit.block == -1) {
+                            mergeWhole(decryptor, unit.task, output);
+                        } else {
+                            mergeBlock(decryptor, unit.task, unit.block, output);
+                        }
+                    }
+                }
+            }
+        });
 
+        return !output.failed;
+    }
+
+    private static DataTask prepare(File dstDir, BlockIndex index, BlockFiles blockFiles, int data, int pos, Output output) {
+        String hash = DatatypeConverter.printHexBinary(index.dataHash(data));
+
+        int n = index.dataBlockCount(data);
+        int[] blocks = new int[n];
+        File[] files = new File[n];
         int k = 0;
-        for (String blockId : blockIds) {
-            if (blockFiles.containsKey(blockId)) {
+        for (int i = 0; i < n; ++i) {
+            blocks[i] = index.dataBlock(data, i);
+            files[i] = blockFiles.find(index.blockId(blocks[i]));
+            if (files[i] != null) {
                 ++k;
             }
         }
 
-        if (k < blockIds.size()) {
-            System.out.printf("Data %s: only %d of %d blocks found\n", k, blockIds.size());
-            return;
+        if (k < n) {
+            output.report(pos, String.format("Data %s: only %d of %d blocks found", hash, k, n));
+            return null;
         }
 
         File dstFile = new File(dstDir, hash);
         if (dstFile.exists()) {
-            System.out.printf("Data %s: file already exists\n", hash);
-            return;
+            output.report(pos, String.format("Data %s: file already exists", hash));
+            return null;
         }
 
+        File tempFile = new File(dstDir, "." + hash + ".tempfile");
+        try {
+            return new DataTask(pos, hash, index.dataSize(data), index, blocks, files, dstFile, tempFile);
+        } catch (VerifyException e) {
+            output.failed = true;
+            output.report(pos, String.format("Data %s: FAILED (%s)", hash, e));
+            return null;
+        }
+    }
+
+    private static void mergeWhole(Decryptor decryptor, DataTask task, Output output) {
         MessageDigest digest = DigestUtils.newSha256();
-        int idx = 0;
-        long ofs = 0;
-
-        File tempFile = new File(dstDir, ".tempfile");
-        try (OutputStream out = new FileOutputStream(tempFile)) {
-            DigestOutputStream digOut = new DigestOutputStream(out, digest);
-
-            for (String blockId : blockIds) {
-                File file = blockFiles.get(blockId);
-                try (InputStream in = new FileInputStream(file)) {
-                    DataInputStream dataIn = new DataInputStream(in);
-                    Verify.verify(dataIn.readInt() == DecryptUtils.DECRYPT_SIGN);
-                    StructBlockFile struct = new StructBlockFile(dataIn);
-                    Verify.verify(struct.blockIdx == idx);
-                    Verify.verify(struct.blockOffset == ofs);
-                    digOut.write(struct.data);
-                    ++idx;
-                    ofs += struct.data.length;
-                }
+        try {
+            for (int i = 0; i < task.files.length; ++i) {
+                ByteBuffer payload = writeBlock(decryptor, task, i);
+                digest.update(payload);
             }
-            digOut.flush();
+        } catch (Throwable e) {
+            task.fail(e);
         }
+        finish(task, digest, output);
+    }
 
-        byte[] actHashBytes = digest.digest();
-        String actHash = DatatypeConverter.printHexBinary(actHashBytes);
-        Verify.verify(actHash.equals(hash), "Expected %s was %s", hash, actHash);
-
-        Verify.verify(tempFile.renameTo(dstFile));
+    private static void mergeBlock(Decryptor decryptor, DataTask task, int blockIdx, Output output) {
+        if (task.error == null) {
+            try {
+                writeBlock(decryptor, task, blockIdx);
+            } catch (Throwable e) {
+                task.fail(e);
+            }
+        }
 
-        System.out.printf("Data %s: done (%,d blocks, %,d bytes)\n", hash, blockIds.size(), ofs);
+        if (task.remaining.decrementAndGet() == 0) {
+            finish(task, null, output);
+        }
     }
 
-    private static void loadMetaData(File metaDir, Map<String, List<String>> dataMap, Map<String, String> blockMap) {
-        Map<Long, File> metaFiles = DreipicListFiles.getMetaFiles(metaDir);
-        for (File file : metaFiles.values()) {
-            StructMeta meta = DreipicListFiles.readMeta(file);
+    private static ByteBuffer writeBlock(Decryptor decryptor, DataTask task, int blockIdx) {
+        File file = task.files[blockIdx];
+        MappedBlockFile block = decryptor == null ? MappedBlockFile.map(file, true) : MappedBlockFile.load(file, decryptor);
 
-            for (StructMetaData data : meta.datas) {
-                String hash = DatatypeConverter.printHexBinary(data.hash);
+        int b = task.blocks[blockIdx];
+        BlockIndex index = task.index;
+        block.verify(blockIdx, task.offsets[blockIdx], index.blockInnerSize(b), index.blockInnerHash(b));
 
-                List<String> blockIds = new ArrayList<>();
+        task.writer().write(block.header.blockOffset, block.payload());
+        return block.payload();
+    }
 
-                for (int i = 0; i < data.blocks.size(); ++i) {
-                    byte[] blockId = DecryptUtils.getBlockId(meta.storageId, data.hash, i);
-                    String blockIdStr = DatatypeConverter.printHexBinary(blockId);
-                    blockIdStr = blockIdStr.substring(2);
-                    String oldHash = blockMap.put(blockIdStr, hash);
-                    Verify.verify(oldHash == null || oldHash.equals(hash));
-                    blockIds.add(blockIdStr);
+    private static void finish(DataTask task, MessageDigest digest, Output output) {
+        String result;
+        try {
+            if (task.error != null) {
+                throw task.error;
+            }
+
+            AssemblyWriter writer = task.writer();
+            Verify.verify(writer.isComplete(), "Blocks do not cover the data");
+            writer.close();
+
+            // Multi-block datas are not read back: every block was checked against its innerHash and offset.
+            if (digest != null) {
+                String actHash = DatatypeConverter.printHexBinary(digest.digest());
+                if (!actHash.equals(task.hash)) {
+                    throw new VerifyException(String.format("Expected %s was %s", task.hash, actHash));
                 }
+            }
 
-                dataMap.put(hash, blockIds);
+            Verify.verify(task.tempFile.renameTo(task.dstFile));
+            result = String.format("Data %s: done (%,d blocks, %,d bytes)", task.hash, task.files.length, task.size);
+        } catch (Throwable e) {
+            task.closeQuietly();
+            task.tempFile.delete();
+            output.failed = true;
+            result = String.format("Data %s: FAILED (%s)", task.hash, e);
+        }
+
+        output.report(task.pos, result);
+    }
+
+    static final class BlockFiles {
+        final Path dir;
+        final FixedKeyIntMap map;
+        final BitSet sharded;
+
+        private BlockFiles(Path dir, FixedKeyIntMap map, BitSet sharded) {
+            this.dir = dir;
+            this.map = map;
+            this.sharded = sharded;
+        }
+
+        static BlockFiles scan(Path dir, BlockIndex index) {
+            FixedKeyIntMap map = new FixedKeyIntMap(BlockDirScanner.NAME_LENGTH, 0);
+            BitSet sharded = new BitSet(index.blockCount());
+
+            try (Stream<BlockDirScanner.BlockFile> files = BlockDirScanner.scan(dir)) {
+                files.forEach(file -> {
+                    int b = index.findBlockByName(file.name);
+                    Verify.verify(b != -1, "Unknown block: %s", file.path);
+                    if (file.isSharded()) {
+                        Verify.verify(Arrays.equals(file.blockId(), index.blockId(b)), "Block in wrong shard: %s", file.path);
+                    }
+
+                    synchronized (map) {
+                        Verify.verify(map.put(file.name, b) == -1, "Duplicate block: %s", file.path);
+                        sharded.set(b, file.isSharded());
+                    }
+                });
+            }
+
+            return new BlockFiles(dir, map, sharded);
+        }
+
+        File find(byte[] blockId) {
+            int b = map.get(blockId, 1);
+            if (b == -1) {
+                return null;
+            }
+            return BlockDirScanner.blockPath(dir, blockId, sharded.get(b)).toFile();
+        }
+    }
+
+    private static final class Output {
+        private final String[] results;
+        private int next;
+        volatile boolean failed;
+
+        Output(int n) {
+            results = new String[n];
+        }
+
+        synchronized void report(int pos, String result) {
+            results[pos] = result;
+            while (next < results.length && results[next] != null) {
+                System.out.println(results[next]);
+                results[next] = "";
+                ++next;
             }
         }
     }
 
-    private static final Map<String, File> getBlockFiles(File blockDir) {
-        Map<String, File> map = new HashMap<>();
-        for (File file : blockDir.listFiles()) {
-            Verify.verify(file.isFile());
-            String name = file.getName();
-            Verify.verify(name.matches("[0-9a-f]{38}"), "%s", name);
-            map.put(name.toUpperCase(), file);
+    private static final class Unit {
+        final DataTask task;
+        final int block;
+
+        Unit(DataTask task, int block) {
+            this.task = task;
+            this.block = block;
+        }
+    }
+
+    private static final class DataTask {
+        final int pos;
+        final String hash;
+        final long size;
+        final BlockIndex index;
+        final int[] blocks;
+        final long[] offsets;
+        final File[] files;
+        final File dstFile;
+        final File tempFile;
+        final AtomicInteger remaining;
+        volatile Throwable error;
+        private AssemblyWriter writer;
+
+        DataTask(int pos, String hash, long size, BlockIndex index, int[] blocks, File[] files, File dstFile, File tempFile) {
+            this.pos = pos;
+            this.hash = hash;
+            this.size = size;
+            this.index = index;
+            this.blocks = blocks;
+            this.files = files;
+            this.dstFile = dstFile;
+            this.tempFile = tempFile;
+            remaining = new AtomicInteger(files.length);
+
+            offsets = new long[blocks.length];
+            long ofs = 0;
+            for (int i = 0; i < blocks.length; ++i) {
+                offsets[i] = ofs;
+                ofs += index.blockInnerSize(blocks[i]);
+            }
+            Verify.verify(ofs == size, "Block sizes %s do not add up to data size %s", ofs, size);
+        }
+
+        synchronized AssemblyWriter writer() {
+            if (writer == null) {
+                writer = new AssemblyWriter(tempFile, size);
+            }
+            return writer;
+        }
+
+        synchronized void fail(Throwable e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+
+        synchronized void closeQuietly() {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (RuntimeException e) {
+                    // Already failing.
+                }
+            }
         }
-        return map;
     }
 }
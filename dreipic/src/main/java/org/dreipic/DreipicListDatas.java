@@ -1,15 +1,13 @@
 package org.dreipic;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.util.Map;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
 
 import javax.xml.bind.DatatypeConverter;
 
-import org.dreipic.struct.StructBlockInfo;
-import org.dreipic.struct.StructMeta;
-import org.dreipic.struct.StructMetaData;
-import org.dreipic.util.DecryptUtils;
-
 public final class DreipicListDatas {
     public static void main(String[] args) {
         if (args.length != 1) {
@@ -19,24 +17,41 @@ public final class DreipicListDatas {
 
         File metaDir = new File(args[0]);
 
-        Map<Long, File> metaFiles = DreipicListFiles.getMetaFiles(metaDir);
-        for (long id : metaFiles.keySet()) {
-            File file = metaFiles.get(id);
-            processMetaFile(id, file);
-        }
-    }
+        BlockIndex index = BlockIndex.forMetaDir(metaDir);
+        long[] transactions = index.transactions();
 
-    private static void processMetaFile(long id, File file) {
-        System.out.printf("META: %s\n", id);
-        StructMeta meta = DreipicListFiles.readMeta(file);
+        // Counting sort of the datas (ordered by hash) by the transaction that introduced them.
+        int[] starts = new int[transactions.length + 1];
+        int[] txs = new int[index.dataCount()];
+        for (int d = 0; d < txs.length; ++d) {
+            txs[d] = Arrays.binarySearch(transactions, index.dataTransaction(d));
+            ++starts[txs[d] + 1];
+        }
+        for (int t = 0; t < transactions.length; ++t) {
+            starts[t + 1] += starts[t];
+        }
+        int[] order = new int[txs.length];
+        int[] fill = Arrays.copyOf(starts, transactions.length);
+        for (int d = 0; d < txs.length; ++d) {
+            order[fill[txs[d]]++] = d;
+        }
 
-        for (StructMetaData data : meta.datas) {
-            System.out.printf("  %s %,d %,d\n", DatatypeConverter.printHexBinary(data.hash), data.size, data.blocks.size());
-            for (int i = 0; i < data.blocks.size(); ++i) {
-                StructBlockInfo block = data.blocks.get(i);
-                byte[] blockId = DecryptUtils.getBlockId(meta.storageId, data.hash, i);
-                System.out.printf("    %s %,d\n", DatatypeConverter.printHexBinary(blockId), block.outerSize);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        for (int t = 0; t < transactions.length; ++t) {
+            out.printf("META: %s\n", transactions[t]);
+            for (int k = starts[t]; k < starts[t + 1]; ++k) {
+                printData(out, index, order[k]);
             }
         }
+        out.flush();
+    }
+
+    private static void printData(PrintWriter out, BlockIndex index, int d) {
+        int n = index.dataBlockCount(d);
+        out.printf("  %s %,d %,d\n", DatatypeConverter.printHexBinary(index.dataHash(d)), index.dataSize(d), n);
+        for (int i = 0; i < n; ++i) {
+            int b = index.dataBlock(d, i);
+            out.printf("    %s %,d\n", DatatypeConverter.printHexBinary(index.blockId(b)), index.blockOuterSize(b));
+        }
     }
 }
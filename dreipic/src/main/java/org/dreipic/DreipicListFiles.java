@@ -1,20 +1,20 @@
 package org.dreipic;
 
-import java.io.DataInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.UncheckedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 import javax.xml.bind.DatatypeConverter;
 
-import org.dreipic.struct.StructMeta;
-import org.dreipic.struct.StructMetaPath;
-import org.dreipic.util.DecryptUtils;
+import org.dreipic.struct.MappedMetaFile;
+import org.dreipic.struct.StructPathType;
+import org.dreipic.util.Decryptor;
+import org.dreipic.util.OrderedWorkers;
 
 import com.google.common.base.Verify;
 import com.google.common.collect.ImmutableMap;
@@ -29,28 +29,43 @@ public final class DreipicListFiles {
 
         File metaDir = new File(args[0]);
 
+        // Transactions are formatted in parallel, and written out in order through one buffered writer.
         Map<Long, File> metaFiles = getMetaFiles(metaDir);
-        for (long id : metaFiles.keySet()) {
-            File file = metaFiles.get(id);
-            processMetaFile(id, file);
-        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        OrderedWorkers.map("List", threads, threads * 4, new ArrayList<>(metaFiles.keySet()),
+                id -> formatMetaFile(id, metaFiles.get(id)), out::write);
+        out.flush();
     }
 
-    private static void processMetaFile(long id, File file) {
-        System.out.printf("META: %s\n", id);
-        StructMeta meta = readMeta(file);
+    private static String formatMetaFile(long id, File file) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("META: ").append(id).append('\n');
+        MappedMetaFile meta = MappedMetaFile.map(file);
 
-        for (StructMetaPath path : meta.paths) {
-            String hashStr = path.hash == null ? "-" : DatatypeConverter.printHexBinary(path.hash);
-            System.out.printf("  %s %s %s\n", path.type, path.path, hashStr);
-        }
+        byte[] hash = new byte[32];
+        meta.accept(new MappedMetaFile.Visitor() {
+            @Override
+            public void path(MappedMetaFile.Entry path) {
+                String hashStr = "-";
+                if (path.type() == StructPathType.FILE || path.type() == StructPathType.ARCHIVE) {
+                    path.getHash(hash);
+                    hashStr = DatatypeConverter.printHexBinary(hash);
+                }
+                sb.append("  ").append(path.type()).append(' ').append(path.path()).append(' ').append(hashStr).append('\n');
+            }
+        });
+        return sb.toString();
     }
 
     static Map<Long, File> getMetaFiles(File metaDir) {
         Map<Long, File> map = new HashMap<>();
         for (File file : metaDir.listFiles()) {
-            Verify.verify(file.isFile(), "%s", file);
             String name = file.getName();
+            if (name.startsWith(".")) {
+                continue;
+            }
+            Verify.verify(file.isFile(), "%s", file);
             Verify.verify(name.matches("\\d+"), "%s", file);
             long id = Long.parseLong(name);
             Verify.verify(!map.containsKey(id), "%s", id);
@@ -65,13 +80,15 @@ public final class DreipicListFiles {
         return ImmutableMap.copyOf(res);
     }
 
-    static StructMeta readMeta(File file) {
-        try (InputStream in = new FileInputStream(file)) {
-            DataInputStream dataIn = new DataInputStream(in);
-            Verify.verify(dataIn.readInt() == DecryptUtils.DECRYPT_SIGN);
-            return new StructMeta(dataIn);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+    static MappedMetaFile mapMeta(File file, byte[] key) {
+        if (key == null) {
+            return MappedMetaFile.map(file);
+        }
+
+        try (Decryptor decryptor = new Decryptor(key)) {
+            MappedMetaFile meta = MappedMetaFile.load(file, decryptor);
+            meta.verifyEnd();
+            return meta;
         }
     }
 }
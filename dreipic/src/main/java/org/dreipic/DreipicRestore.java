@@ -0,0 +1,186 @@
+package org.dreipic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.dreipic.struct.MappedMetaFile;
+import org.dreipic.util.OrderedWorkers;
+
+import com.google.common.primitives.Ints;
+
+public final class DreipicRestore {
+    static final String STAGE_DIR_NAME = ".dreipic_restore";
+
+    public static void main(String[] args) throws IOException {
+        boolean encrypted = args.length > 0 && args[0].equals("-k");
+        if (encrypted) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+
+        if (args.length != 3 && args.length != 4) {
+            System.err.println("Usage: [-k] META_DIR BLOCK_DIR DST_DIR [THREADS]");
+            System.err.println("  -k  metas and blocks may still be encrypted, read the key from the console");
+            System.exit(1);
+        }
+
+        File metaDir = new File(args[0]);
+        File blockDir = new File(args[1]);
+        File dstDir = new File(args[2]);
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        byte[] key = encrypted ? ConsoleKey.readKey() : null;
+
+        boolean ok = restore(metaDir, blockDir, dstDir, key, threads);
+        if (!ok) {
+            System.exit(2);
+        }
+    }
+
+    static boolean restore(File metaDir, File blockDir, File dstDir, byte[] key, int threads) throws IOException {
+        return restore(metaDir, blockDir, dstDir, key, threads, true);
+    }
+
+    static boolean restore(File metaDir, File blockDir, File dstDir, byte[] key, int threads, boolean hardlinks)
+            throws IOException
+    {
+        Map<Long, File> metaFiles = DreipicListFiles.getMetaFiles(metaDir);
+        List<File> files = new ArrayList<>(metaFiles.values());
+        List<MappedMetaFile> metas = OrderedWorkers.mapAll("Meta", threads, files,
+                file -> DreipicListFiles.mapMeta(file, key));
+
+        Map<File, MappedMetaFile> metaByFile = new HashMap<>();
+        for (int i = 0; i < files.size(); ++i) {
+            metaByFile.put(files.get(i), metas.get(i));
+        }
+
+        // The index is built from the metas already read. A read-only dump gets it in memory, so nothing but the
+        // restored tree is written to the destination.
+        BlockIndex index = BlockIndex.forMetaDir(metaDir, metaFiles, metaByFile::get);
+        System.out.printf("Index: %,d transactions, %,d datas, %,d blocks\n",
+                index.transactions().length, index.dataCount(), index.blockCount());
+
+        RestorePlan plan = RestorePlan.build(metas);
+        System.out.printf("Plan: %,d files with %,d distinct datas, %,d directories\n",
+                plan.fileCount, plan.groups.size(), plan.directories.size());
+
+        Path root = dstDir.toPath().toAbsolutePath().normalize();
+        for (String dir : plan.directories) {
+            Files.createDirectories(RestorePlan.resolve(root, dir));
+        }
+
+        // Every data is assembled once into the stage directory, which is on the same file system as the targets.
+        Path stageDir = root.resolve(STAGE_DIR_NAME);
+        Files.createDirectories(stageDir);
+
+        boolean ok = true;
+        List<RestorePlan.Group> groups = new ArrayList<>();
+        List<Integer> datas = new ArrayList<>();
+        for (RestorePlan.Group group : plan.groups) {
+            if (pendingTargets(root, group).isEmpty()) {
+                continue;
+            }
+
+            int d = index.findData(group.hash);
+            if (d == -1) {
+                System.out.printf("Data %s: not in any transaction, %,d paths not restored\n", hashStr(group.hash), group.paths.size());
+                ok = false;
+                continue;
+            }
+
+            groups.add(group);
+            datas.add(d);
+        }
+
+        DreipicGetData.BlockFiles blockFiles = DreipicGetData.BlockFiles.scan(blockDir.toPath(), index);
+        ok &= DreipicGetData.mergeAll(stageDir.toFile(), key, index, blockFiles, Ints.toArray(datas), threads);
+
+        Counts counts = new Counts();
+        for (RestorePlan.Group group : groups) {
+            ok &= materialize(root, stageDir, group, hardlinks, counts);
+        }
+
+        // Leftovers of failed datas keep the stage directory around for the next run.
+        stageDir.toFile().delete();
+
+        System.out.printf("Restored %,d paths: %,d datas moved, %,d hardlinks, %,d copies\n",
+                counts.moved + counts.linked + counts.copied, counts.moved, counts.linked, counts.copied);
+        return ok;
+    }
+
+    private static boolean materialize(Path root, Path stageDir, RestorePlan.Group group, boolean hardlinks, Counts counts)
+            throws IOException
+    {
+        String hash = hashStr(group.hash);
+        Path source = stageDir.resolve(hash);
+        if (!Files.isRegularFile(source)) {
+            System.out.printf("Data %s: not assembled, %,d paths not restored\n", hash, group.paths.size());
+            return false;
+        }
+
+        // The staged data stays until its last target, so an interrupted run can pick up where it stopped.
+        List<Path> targets = pendingTargets(root, group);
+        for (int i = 0; i < targets.size(); ++i) {
+            Path target = targets.get(i);
+            Files.createDirectories(target.getParent());
+
+            if (i == targets.size() - 1) {
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                ++counts.moved;
+            } else if (hardlinks && link(source, target)) {
+                ++counts.linked;
+            } else {
+                Path temp = target.resolveSibling("." + target.getFileName() + ".tempfile");
+                Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                ++counts.copied;
+            }
+        }
+        return true;
+    }
+
+    private static boolean link(Path source, Path target) {
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // No hardlinks on this file system, across devices, or too many links to one file.
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<Path> pendingTargets(Path root, RestorePlan.Group group) {
+        List<Path> res = new ArrayList<>();
+        for (String name : group.paths) {
+            Path target = RestorePlan.resolve(root, name);
+            if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                res.add(target);
+            }
+        }
+        return res;
+    }
+
+    private static String hashStr(byte[] hash) {
+        return DatatypeConverter.printHexBinary(hash);
+    }
+
+    private static final class Counts {
+        int moved;
+        int linked;
+        int copied;
+    }
+}
@@ -0,0 +1,233 @@
+package org.dreipic;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.dreipic.struct.StructBlockHeader;
+import org.dreipic.struct.StructBlockInfo;
+import org.dreipic.struct.StructMeta;
+import org.dreipic.struct.StructMetaData;
+import org.dreipic.util.DecryptUtils;
+import org.dreipic.util.Decryptor;
+import org.dreipic.util.DigestUtils;
+import org.dreipic.util.FixedKeyIntMap;
+import org.dreipic.util.ThreadUtils;
+
+import com.google.common.base.Verify;
+import com.google.common.collect.Ordering;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+
+public final class DreipicScrub {
+    private final byte[] key;
+    private final int threads;
+
+    private final FixedKeyIntMap expected;
+    private final List<ExpectedBlock> expectedBlocks;
+    private final BitSet found;
+    private final List<String> problems;
+
+    DreipicScrub(byte[] key, int threads) {
+        this.key = key;
+        this.threads = threads;
+        expected = new FixedKeyIntMap(19, 0);
+        expectedBlocks = new ArrayList<>();
+        found = new BitSet();
+        problems = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("Usage: META_DIR BLOCK_DIR [THREADS]");
+            System.exit(1);
+        }
+
+        File metaDir = new File(args[0]);
+        File blockDir = new File(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        byte[] key = ConsoleKey.readKey();
+
+        DreipicScrub scrub = new DreipicScrub(key, threads);
+        Summary summary = scrub.scrub(metaDir, blockDir);
+        System.exit(summary.lines.isEmpty() ? 0 : 2);
+    }
+
+    Summary scrub(File metaDir, File blockDir) {
+        List<File> metaFiles = new ArrayList<>(DreipicListFiles.getMetaFiles(metaDir).values());
+        System.out.printf("Checking %,d metas\n", metaFiles.size());
+        forEachParallel(metaFiles, this::checkMeta);
+
+        List<File> blockFiles;
+        try (Stream<BlockDirScanner.BlockFile> files = BlockDirScanner.scan(blockDir.toPath())) {
+            blockFiles = files.map(file -> file.path.toFile()).collect(Collectors.toList());
+        }
+        System.out.printf("Checking %,d blocks (%,d expected)\n", blockFiles.size(), expected.size());
+        forEachParallel(blockFiles, this::checkBlock);
+
+        List<String> missing = new ArrayList<>();
+        expected.forEach((keys, off, idx) -> {
+            if (!found.get(idx)) {
+                ExpectedBlock exp = expectedBlocks.get(idx);
+                String name = BaseEncoding.base16().lowerCase().encode(keys, off, 19);
+                String hash = DatatypeConverter.printHexBinary(exp.dataHash);
+                missing.add(String.format("MISSING %s: data %s block %d", name, hash, exp.blockIdx));
+            }
+        });
+
+        List<String> report = new ArrayList<>(problems);
+        report.addAll(missing);
+        Summary summary = new Summary(metaFiles.size(), blockFiles.size(), problems.size(), missing.size(),
+                Ordering.natural().sortedCopy(report));
+        for (String line : summary.lines) {
+            System.out.println(line);
+        }
+
+        System.out.printf("Metas: %,d, blocks: %,d, bad: %,d, missing: %,d\n",
+                summary.metas, summary.blocks, summary.bad, summary.missing);
+
+        return summary;
+    }
+
+    private void forEachParallel(List<File> files, FileCheck check) {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+
+        ThreadUtils.runWorkers("Scrub", threads, () -> {
+            try (Decryptor decryptor = new Decryptor(key)) {
+                for (;;) {
+                    int idx = next.getAndIncrement();
+                    if (idx >= files.size()) {
+                        break;
+                    }
+
+                    File file = files.get(idx);
+                    try {
+                        check.check(decryptor, file);
+                    } catch (Throwable e) {
+                        problems.add(String.format("BAD %s: %s", file, e));
+                    }
+
+                    int n = done.incrementAndGet();
+                    if (n % 10_000 == 0) {
+                        System.out.printf("  %,d / %,d\n", n, files.size());
+                    }
+                }
+            }
+        });
+    }
+
+    private void checkMeta(Decryptor decryptor, File file) throws IOException {
+        StructMeta meta;
+        try (InputStream in = decryptor.openFile(new FileInputStream(file))) {
+            DataInputStream dataIn = new DataInputStream(in);
+            meta = new StructMeta(dataIn);
+            Verify.verify(ByteStreams.exhaust(dataIn) == 0, "Trailing data");
+        }
+
+        List<byte[]> blockIds = new ArrayList<>();
+        List<ExpectedBlock> blocks = new ArrayList<>();
+        for (StructMetaData data : meta.datas) {
+            long ofs = 0;
+            for (int i = 0; i < data.blocks.size(); ++i) {
+                StructBlockInfo block = data.blocks.get(i);
+                blockIds.add(DecryptUtils.getBlockId(meta.storageId, data.hash, i));
+                blocks.add(new ExpectedBlock(meta.storageId, data.hash, i, ofs, block.innerSize, block.innerHash));
+                ofs += block.innerSize;
+            }
+        }
+
+        synchronized (expected) {
+            for (int i = 0; i < blocks.size(); ++i) {
+                int idx = expected.get(blockIds.get(i), 1);
+                if (idx == -1) {
+                    expected.put(blockIds.get(i), 1, expectedBlocks.size());
+                    expectedBlocks.add(blocks.get(i));
+                } else {
+                    expectedBlocks.set(idx, blocks.get(i));
+                }
+            }
+        }
+    }
+
+    private void checkBlock(Decryptor decryptor, File file) throws IOException {
+        byte[] name = BlockDirScanner.parseName(file.getName());
+        int idx = expected.get(name);
+        if (idx == -1) {
+            problems.add(String.format("UNKNOWN %s", file));
+            return;
+        }
+        synchronized (found) {
+            found.set(idx);
+        }
+        ExpectedBlock exp = expectedBlocks.get(idx);
+
+        try (InputStream in = decryptor.openFile(new FileInputStream(file))) {
+            DataInputStream dataIn = new DataInputStream(in);
+            StructBlockHeader header = new StructBlockHeader(dataIn);
+
+            Verify.verify(Arrays.equals(header.storageId, exp.storageId), "Wrong storage");
+            Verify.verify(header.blockIdx == exp.blockIdx, "Block index %s, expected %s", header.blockIdx, exp.blockIdx);
+            Verify.verify(header.blockOffset == exp.blockOffset, "Block offset %s, expected %s", header.blockOffset, exp.blockOffset);
+            Verify.verify(header.dataLen == exp.innerSize, "Block size %s, expected %s", header.dataLen, exp.innerSize);
+
+            DigestInputStream digestIn = new DigestInputStream(dataIn, DigestUtils.newSha256());
+            long len = ByteStreams.exhaust(digestIn);
+            Verify.verify(len == header.dataLen, "Block length %s, expected %s", len, header.dataLen);
+            Verify.verify(MessageDigest.isEqual(digestIn.getMessageDigest().digest(), exp.innerHash), "Block hash mismatch");
+        }
+    }
+
+    static final class Summary {
+        final int metas;
+        final int blocks;
+        final int bad;
+        final int missing;
+        final List<String> lines;
+
+        Summary(int metas, int blocks, int bad, int missing, List<String> lines) {
+            this.metas = metas;
+            this.blocks = blocks;
+            this.bad = bad;
+            this.missing = missing;
+            this.lines = lines;
+        }
+    }
+
+    private interface FileCheck {
+        void check(Decryptor decryptor, File file) throws IOException;
+    }
+
+    private static final class ExpectedBlock {
+        final byte[] storageId;
+        final byte[] dataHash;
+        final int blockIdx;
+        final long blockOffset;
+        final long innerSize;
+        final byte[] innerHash;
+
+        ExpectedBlock(byte[] storageId, byte[] dataHash, int blockIdx, long blockOffset, long innerSize, byte[] innerHash) {
+            this.storageId = storageId;
+            this.dataHash = dataHash;
+            this.blockIdx = blockIdx;
+            this.blockOffset = blockOffset;
+            this.innerSize = innerSize;
+            this.innerHash = innerHash;
+        }
+    }
+}
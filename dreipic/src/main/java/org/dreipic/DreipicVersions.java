@@ -0,0 +1,113 @@
+package org.dreipic;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.dreipic.struct.MappedMetaFile;
+import org.dreipic.util.OrderedWorkers;
+
+public final class DreipicVersions {
+    public static void main(String[] args) {
+        boolean encrypted = args.length > 0 && args[0].equals("-k");
+        if (encrypted) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+
+        String query = args.length > 2 ? args[2] : "all";
+        int argCount = query.equals("all") ? 3 : query.equals("between") ? 5 : 4;
+        if (args.length != 2 && args.length != argCount) {
+            System.err.println("Usage: [-k] META_DIR PATH [all | as-of DATE | before DATE | between DATE DATE]");
+            System.err.println("  -k    metas may still be encrypted, read the key from the console");
+            System.err.println("  DATE  yyyy-MM-dd, yyyy-MM-ddTHH:mm[:ss] in local time, or epoch milliseconds");
+            System.exit(1);
+        }
+
+        File metaDir = new File(args[0]);
+        String path = args[1];
+        byte[] key = encrypted ? ConsoleKey.readKey() : null;
+
+        MetaStore store = loadStore(metaDir, key);
+        VersionIndex index = VersionIndex.build(store);
+
+        int name = store.findName(path);
+        if (name == -1) {
+            System.err.printf("No such path: %s\n", path);
+            System.exit(2);
+        }
+
+        int[] paths;
+        switch (query) {
+        case "all":
+            paths = index.between(name, Long.MIN_VALUE, Long.MAX_VALUE);
+            break;
+        case "as-of":
+            paths = single(index.asOf(name, parseTime(args[3])));
+            break;
+        case "before":
+            paths = single(index.latestBefore(name, parseTime(args[3])));
+            break;
+        case "between":
+            paths = index.between(name, parseTime(args[3]), parseTime(args[4]));
+            break;
+        default:
+            System.err.printf("Unknown query: %s\n", query);
+            System.exit(1);
+            return;
+        }
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        for (int p : paths) {
+            printVersion(out, store, p);
+        }
+        out.flush();
+    }
+
+    static MetaStore loadStore(File metaDir, byte[] key) {
+        Map<Long, File> metaFiles = DreipicListFiles.getMetaFiles(metaDir);
+        List<MappedMetaFile> metas = OrderedWorkers.mapAll("Meta", Runtime.getRuntime().availableProcessors(),
+                new ArrayList<>(metaFiles.values()), file -> DreipicListFiles.mapMeta(file, key));
+
+        MetaStore.Builder builder = MetaStore.builder();
+        int i = 0;
+        for (long tx : metaFiles.keySet()) {
+            builder.add(tx, metas.get(i++));
+        }
+        return builder.build();
+    }
+
+    static long parseTime(String s) {
+        if (s.matches("-?\\d+")) {
+            return Long.parseLong(s);
+        }
+        LocalDateTime time = s.contains("T") ? LocalDateTime.parse(s) : LocalDate.parse(s).atStartOfDay();
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static int[] single(int p) {
+        return p == -1 ? new int[0] : new int[] { p };
+    }
+
+    private static void printVersion(PrintWriter out, MetaStore store, int p) {
+        String date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS").format(new Date(store.txTimestamp(store.pathTx(p))));
+        out.printf("%s %s %s", date, store.txId(store.pathTx(p)), store.pathType(p));
+        int d = store.pathData(p);
+        if (store.isFile(p)) {
+            String size = d == -1 ? "<missing>" : String.format("%,d", store.dataSize(d));
+            out.printf(" %s %s", size, DatatypeConverter.printHexBinary(store.hash(store.pathHash(p))));
+        }
+        out.printf("\n");
+    }
+}
@@ -0,0 +1,535 @@
+package org.dreipic;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.dreipic.struct.MappedMetaFile;
+import org.dreipic.struct.StructPathType;
+import org.dreipic.util.HashPool;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
+
+// All metas of a storage in columns of primitive arrays. Transactions, hashes, datas, blocks, names and paths
+// are plain int ids into those columns; a data is defined by the latest transaction that lists it.
+public final class MetaStore {
+    private static final StructPathType[] PATH_TYPES = StructPathType.values();
+
+    private static final int SIGN = 0x6A0F93C1;
+    // Bumped whenever write() changes, so that stores written by older code are not read back.
+    public static final int FORMAT_VERSION = 1;
+
+    private final byte[] storageId;
+
+    private final long[] txIds;
+    private final long[] txTimestamps;
+    private final int[] txFirstPath;
+
+    private final HashPool hashes;
+    private final int[] hashData;
+
+    private final int[] dataHash;
+    private final long[] dataSize;
+    private final int[] dataTx;
+    private final int[] dataFirstBlock;
+    private final int[] dataBlockCount;
+
+    private final long[] blockInnerSize;
+    private final int[] blockInnerHash;
+    private final long[] blockOuterSize;
+    private final int[] blockOuterHash;
+
+    private final PathTrie names;
+    private final int[] nameLatestPath;
+
+    private final int[] pathName;
+    private final byte[] pathType;
+    private final int[] pathHash;
+    private final long[] pathTime;
+    private final int[] pathTx;
+    private final int[] pathPrevVersion;
+
+    private MetaStore(Builder b) {
+        storageId = b.storageId == null ? new byte[32] : b.storageId;
+
+        txIds = Arrays.copyOf(b.txIds, b.txCount);
+        txTimestamps = Arrays.copyOf(b.txTimestamps, b.txCount);
+        txFirstPath = Arrays.copyOf(b.txFirstPath, b.txCount + 1);
+        txFirstPath[b.txCount] = b.pathCount;
+
+        hashes = b.hashes;
+        hashes.trim();
+        hashData = Arrays.copyOf(b.hashData, hashes.size());
+
+        dataHash = Arrays.copyOf(b.dataHash, b.dataCount);
+        dataSize = Arrays.copyOf(b.dataSize, b.dataCount);
+        dataTx = Arrays.copyOf(b.dataTx, b.dataCount);
+        dataFirstBlock = Arrays.copyOf(b.dataFirstBlock, b.dataCount);
+        dataBlockCount = Arrays.copyOf(b.dataBlockCount, b.dataCount);
+
+        blockInnerSize = Arrays.copyOf(b.blockInnerSize, b.blockCount);
+        blockInnerHash = Arrays.copyOf(b.blockInnerHash, b.blockCount);
+        blockOuterSize = Arrays.copyOf(b.blockOuterSize, b.blockCount);
+        blockOuterHash = Arrays.copyOf(b.blockOuterHash, b.blockCount);
+
+        names = b.names;
+        names.trim();
+        nameLatestPath = Arrays.copyOf(b.nameLatestPath, names.size());
+
+        pathName = Arrays.copyOf(b.pathName, b.pathCount);
+        pathType = Arrays.copyOf(b.pathType, b.pathCount);
+        pathHash = Arrays.copyOf(b.pathHash, b.pathCount);
+        pathTime = Arrays.copyOf(b.pathTime, b.pathCount);
+        pathTx = Arrays.copyOf(b.pathTx, b.pathCount);
+        pathPrevVersion = Arrays.copyOf(b.pathPrevVersion, b.pathCount);
+    }
+
+    public static Builder builder() {
+        return new Builder(new HashPool(0), new PathTrie());
+    }
+
+    // A builder that starts out with the store written by write(), to add newer transactions to.
+    public static Builder builder(ByteBuffer buf) {
+        Verify.verify(buf.getInt() == SIGN, "Not a meta store");
+        Verify.verify(buf.getInt() == FORMAT_VERSION, "Unsupported meta store version");
+
+        byte[] storageId = new byte[32];
+        buf.get(storageId);
+
+        Builder b = new Builder(HashPool.read(buf), PathTrie.read(buf));
+        b.txCount = readCount(buf);
+        b.storageId = b.txCount == 0 ? null : storageId;
+        b.txIds = readLongs(buf, b.txCount);
+        b.txTimestamps = readLongs(buf, b.txCount);
+        b.txFirstPath = readInts(buf, b.txCount);
+
+        b.knownHashes = b.hashes.size();
+        b.hashData = readInts(buf, b.knownHashes);
+
+        b.dataCount = readCount(buf);
+        b.dataHash = readInts(buf, b.dataCount);
+        b.dataSize = readLongs(buf, b.dataCount);
+        b.dataTx = readInts(buf, b.dataCount);
+        b.dataFirstBlock = readInts(buf, b.dataCount);
+        b.dataBlockCount = readInts(buf, b.dataCount);
+
+        b.blockCount = readCount(buf);
+        b.blockInnerSize = readLongs(buf, b.blockCount);
+        b.blockInnerHash = readInts(buf, b.blockCount);
+        b.blockOuterSize = readLongs(buf, b.blockCount);
+        b.blockOuterHash = readInts(buf, b.blockCount);
+
+        b.knownNames = b.names.size();
+        b.nameLatestPath = readInts(buf, b.knownNames);
+
+        b.pathCount = readCount(buf);
+        b.pathName = readInts(buf, b.pathCount);
+        b.pathType = readBytes(buf, b.pathCount);
+        b.pathHash = readInts(buf, b.pathCount);
+        b.pathTime = readLongs(buf, b.pathCount);
+        b.pathTx = readInts(buf, b.pathCount);
+        b.pathPrevVersion = readInts(buf, b.pathCount);
+
+        Verify.verify(!buf.hasRemaining(), "Trailing bytes after meta store");
+        return b;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(SIGN);
+        out.writeInt(FORMAT_VERSION);
+        out.write(storageId);
+        hashes.write(out);
+        names.write(out);
+
+        out.writeInt(txIds.length);
+        writeLongs(out, txIds);
+        writeLongs(out, txTimestamps);
+        writeInts(out, Arrays.copyOf(txFirstPath, txIds.length));
+
+        writeInts(out, hashData);
+
+        out.writeInt(dataHash.length);
+        writeInts(out, dataHash);
+        writeLongs(out, dataSize);
+        writeInts(out, dataTx);
+        writeInts(out, dataFirstBlock);
+        writeInts(out, dataBlockCount);
+
+        out.writeInt(blockInnerSize.length);
+        writeLongs(out, blockInnerSize);
+        writeInts(out, blockInnerHash);
+        writeLongs(out, blockOuterSize);
+        writeInts(out, blockOuterHash);
+
+        writeInts(out, nameLatestPath);
+
+        out.writeInt(pathName.length);
+        writeInts(out, pathName);
+        out.write(pathType);
+        writeInts(out, pathHash);
+        writeLongs(out, pathTime);
+        writeInts(out, pathTx);
+        writeInts(out, pathPrevVersion);
+    }
+
+    private static void writeInts(DataOutput out, int[] values) throws IOException {
+        for (int v : values) {
+            out.writeInt(v);
+        }
+    }
+
+    private static void writeLongs(DataOutput out, long[] values) throws IOException {
+        for (long v : values) {
+            out.writeLong(v);
+        }
+    }
+
+    private static int readCount(ByteBuffer buf) {
+        int n = buf.getInt();
+        Verify.verify(n >= 0 && n <= buf.remaining(), "Bad count: %s", n);
+        return n;
+    }
+
+    // Arrays of a builder grow by doubling, so they are never allocated empty.
+    private static int[] readInts(ByteBuffer buf, int n) {
+        Verify.verify(n <= buf.remaining() / 4, "Meta store truncated");
+        int[] res = new int[Math.max(16, n)];
+        buf.asIntBuffer().get(res, 0, n);
+        buf.position(buf.position() + n * 4);
+        return res;
+    }
+
+    private static long[] readLongs(ByteBuffer buf, int n) {
+        Verify.verify(n <= buf.remaining() / 8, "Meta store truncated");
+        long[] res = new long[Math.max(16, n)];
+        buf.asLongBuffer().get(res, 0, n);
+        buf.position(buf.position() + n * 8);
+        return res;
+    }
+
+    private static byte[] readBytes(ByteBuffer buf, int n) {
+        Verify.verify(n <= buf.remaining(), "Meta store truncated");
+        byte[] res = new byte[Math.max(16, n)];
+        buf.get(res, 0, n);
+        return res;
+    }
+
+    public byte[] storageId() {
+        return storageId.clone();
+    }
+
+    public int txCount() {
+        return txIds.length;
+    }
+
+    public long txId(int t) {
+        return txIds[t];
+    }
+
+    public long txTimestamp(int t) {
+        return txTimestamps[t];
+    }
+
+    // The path entries of a transaction are the ids [txFirstPath(t), txFirstPath(t + 1)).
+    public int txFirstPath(int t) {
+        Preconditions.checkElementIndex(t, txIds.length + 1);
+        return txFirstPath[t];
+    }
+
+    public int hashCount() {
+        return hashes.size();
+    }
+
+    public int findHash(byte[] hash) {
+        return hashes.find(hash);
+    }
+
+    public byte[] hash(int h) {
+        return hashes.get(h);
+    }
+
+    public int dataCount() {
+        return dataHash.length;
+    }
+
+    public int findData(byte[] hash) {
+        int h = hashes.find(hash);
+        return h == -1 ? -1 : hashData[h];
+    }
+
+    public int hashData(int h) {
+        return hashData[h];
+    }
+
+    public byte[] dataHash(int d) {
+        return hashes.get(dataHash[d]);
+    }
+
+    public long dataSize(int d) {
+        return dataSize[d];
+    }
+
+    public int dataTx(int d) {
+        return dataTx[d];
+    }
+
+    public int dataBlockCount(int d) {
+        return dataBlockCount[d];
+    }
+
+    public int dataBlock(int d, int i) {
+        Preconditions.checkElementIndex(i, dataBlockCount[d]);
+        return dataFirstBlock[d] + i;
+    }
+
+    public int blockCount() {
+        return blockInnerSize.length;
+    }
+
+    public long blockInnerSize(int b) {
+        return blockInnerSize[b];
+    }
+
+    public byte[] blockInnerHash(int b) {
+        return hashes.get(blockInnerHash[b]);
+    }
+
+    public long blockOuterSize(int b) {
+        return blockOuterSize[b];
+    }
+
+    public byte[] blockOuterHash(int b) {
+        return hashes.get(blockOuterHash[b]);
+    }
+
+    // Names are the nodes of the path trie; directory prefixes that never appear themselves have no paths.
+    public int nameCount() {
+        return names.size();
+    }
+
+    public String name(int n) {
+        return names.path(n);
+    }
+
+    public int findName(String name) {
+        return names.find(name);
+    }
+
+    public PathTrie names() {
+        return names;
+    }
+
+    // The last path entry with this name, then pathPrevVersion() walks back in time.
+    public int latestPath(int n) {
+        return nameLatestPath[n];
+    }
+
+    public int pathCount() {
+        return pathName.length;
+    }
+
+    public int pathName(int p) {
+        return pathName[p];
+    }
+
+    public StructPathType pathType(int p) {
+        return PATH_TYPES[pathType[p]];
+    }
+
+    public boolean isFile(int p) {
+        StructPathType type = pathType(p);
+        return type == StructPathType.FILE || type == StructPathType.ARCHIVE;
+    }
+
+    public int pathHash(int p) {
+        return pathHash[p];
+    }
+
+    public int pathData(int p) {
+        int h = pathHash[p];
+        return h == -1 ? -1 : hashData[h];
+    }
+
+    // Zero when the path has no time.
+    public long pathTime(int p) {
+        return pathTime[p];
+    }
+
+    public int pathTx(int p) {
+        return pathTx[p];
+    }
+
+    public int pathPrevVersion(int p) {
+        return pathPrevVersion[p];
+    }
+
+    public static final class Builder {
+        private byte[] storageId;
+
+        private long[] txIds = new long[16];
+        private long[] txTimestamps = new long[16];
+        private int[] txFirstPath = new int[16];
+        private int txCount;
+
+        private final HashPool hashes;
+        private int[] hashData = new int[16];
+        private int knownHashes;
+
+        private int[] dataHash = new int[16];
+        private long[] dataSize = new long[16];
+        private int[] dataTx = new int[16];
+        private int[] dataFirstBlock = new int[16];
+        private int[] dataBlockCount = new int[16];
+        private int dataCount;
+
+        private long[] blockInnerSize = new long[16];
+        private int[] blockInnerHash = new int[16];
+        private long[] blockOuterSize = new long[16];
+        private int[] blockOuterHash = new int[16];
+        private int blockCount;
+
+        private final PathTrie names;
+        private int[] nameLatestPath = new int[16];
+        private int knownNames;
+
+        private int[] pathName = new int[16];
+        private byte[] pathType = new byte[16];
+        private int[] pathHash = new int[16];
+        private long[] pathTime = new long[16];
+        private int[] pathTx = new int[16];
+        private int[] pathPrevVersion = new int[16];
+        private int pathCount;
+
+        private boolean built;
+
+        private Builder(HashPool hashes, PathTrie names) {
+            this.hashes = hashes;
+            this.names = names;
+        }
+
+        // Transactions must be added in order.
+        public Builder add(long txId, MappedMetaFile meta) {
+            Preconditions.checkState(!built);
+            byte[] metaStorageId = new byte[32];
+            meta.getStorageId(metaStorageId);
+            if (storageId == null) {
+                storageId = metaStorageId;
+            }
+            Verify.verify(Arrays.equals(storageId, metaStorageId), "Metas from different storages");
+            Verify.verify(txCount == 0 || txIds[txCount - 1] < txId, "Transaction out of order: %s", txId);
+
+            if (txCount == txIds.length) {
+                txIds = Arrays.copyOf(txIds, txCount * 2);
+                txTimestamps = Arrays.copyOf(txTimestamps, txCount * 2);
+                txFirstPath = Arrays.copyOf(txFirstPath, txCount * 2);
+            }
+            int tx = txCount++;
+            txIds[tx] = txId;
+            txTimestamps[tx] = meta.timestamp;
+            txFirstPath[tx] = pathCount;
+
+            MappedMetaFile.Entry entry = meta.entries();
+            while (entry.next()) {
+                if (entry.isData()) {
+                    addData(tx, entry);
+                } else {
+                    addPath(tx, entry);
+                }
+            }
+            return this;
+        }
+
+        // The builder hands its pools over to the store and cannot be used afterwards.
+        public MetaStore build() {
+            Preconditions.checkState(!built);
+            built = true;
+            return new MetaStore(this);
+        }
+
+        private int internHash(ByteBuffer hash) {
+            int h = hashes.intern(hash);
+            if (h == knownHashes) {
+                if (h == hashData.length) {
+                    hashData = Arrays.copyOf(hashData, h * 2);
+                }
+                hashData[h] = -1;
+                ++knownHashes;
+            }
+            return h;
+        }
+
+        private void addData(int tx, MappedMetaFile.Entry entry) {
+            int h = internHash(entry.hash());
+            int d = hashData[h];
+            if (d != -1) {
+                // The blocks of a data follow from its hash; only the defining transaction moves on.
+                Verify.verify(dataBlockCount[d] == entry.blockCount(), "Block count mismatch");
+                dataTx[d] = tx;
+                return;
+            }
+
+            if (dataCount == dataHash.length) {
+                int n = dataCount * 2;
+                dataHash = Arrays.copyOf(dataHash, n);
+                dataSize = Arrays.copyOf(dataSize, n);
+                dataTx = Arrays.copyOf(dataTx, n);
+                dataFirstBlock = Arrays.copyOf(dataFirstBlock, n);
+                dataBlockCount = Arrays.copyOf(dataBlockCount, n);
+            }
+            d = dataCount++;
+            hashData[h] = d;
+            dataHash[d] = h;
+            dataSize[d] = entry.size();
+            dataTx[d] = tx;
+            dataFirstBlock[d] = blockCount;
+            dataBlockCount[d] = entry.blockCount();
+
+            for (int i = 0; i < entry.blockCount(); ++i) {
+                if (blockCount == blockInnerSize.length) {
+                    int n = blockCount * 2;
+                    blockInnerSize = Arrays.copyOf(blockInnerSize, n);
+                    blockInnerHash = Arrays.copyOf(blockInnerHash, n);
+                    blockOuterSize = Arrays.copyOf(blockOuterSize, n);
+                    blockOuterHash = Arrays.copyOf(blockOuterHash, n);
+                }
+                int b = blockCount++;
+                blockInnerSize[b] = entry.blockInnerSize(i);
+                blockInnerHash[b] = internHash(entry.blockInnerHash(i));
+                blockOuterSize[b] = entry.blockOuterSize(i);
+                blockOuterHash[b] = internHash(entry.blockOuterHash(i));
+            }
+        }
+
+        private void addPath(int tx, MappedMetaFile.Entry entry) {
+            int n = names.add(entry.pathBytes());
+            while (knownNames < names.size()) {
+                if (knownNames == nameLatestPath.length) {
+                    nameLatestPath = Arrays.copyOf(nameLatestPath, knownNames * 2);
+                }
+                nameLatestPath[knownNames++] = -1;
+            }
+
+            if (pathCount == pathName.length) {
+                int k = pathCount * 2;
+                pathName = Arrays.copyOf(pathName, k);
+                pathType = Arrays.copyOf(pathType, k);
+                pathHash = Arrays.copyOf(pathHash, k);
+                pathTime = Arrays.copyOf(pathTime, k);
+                pathTx = Arrays.copyOf(pathTx, k);
+                pathPrevVersion = Arrays.copyOf(pathPrevVersion, k);
+            }
+            int p = pathCount++;
+            StructPathType type = entry.type();
+            boolean file = type == StructPathType.FILE || type == StructPathType.ARCHIVE;
+            pathName[p] = n;
+            pathType[p] = (byte) type.ordinal();
+            pathHash[p] = file ? internHash(entry.hash()) : -1;
+            pathTime[p] = file ? entry.time() : 0;
+            pathTx[p] = tx;
+            pathPrevVersion[p] = nameLatestPath[n];
+            nameLatestPath[n] = p;
+        }
+    }
+}
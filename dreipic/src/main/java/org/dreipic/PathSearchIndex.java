@@ -0,0 +1,416 @@
+package org.dreipic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Verify;
+
+// A trigram index over a set of paths: for every trigram of their UTF-8 bytes the sorted list of paths that
+// contain it. A query intersects the lists of the trigrams it requires and checks only the paths that are
+// left. Paths are kept in sorted order, so results come out sorted.
+public final class PathSearchIndex {
+    private static final int MIN_BUCKET_BITS = 8;
+    private static final int MAX_BUCKET_BITS = 20;
+
+    // Paths in order, as UTF-8 in one array.
+    private final int[] names;
+    private final byte[] text;
+    private final int[] offsets;
+
+    // Trigrams are hashed into buckets; a collision only lets more candidates through.
+    private final int bucketBits;
+    private final int[] firstPosting;
+    private final int[] postings;
+
+    private PathSearchIndex(int[] names, byte[] text, int[] offsets, int bucketBits, int[] firstPosting,
+            int[] postings)
+    {
+        this.names = names;
+        this.text = text;
+        this.offsets = offsets;
+        this.bucketBits = bucketBits;
+        this.firstPosting = firstPosting;
+        this.postings = postings;
+    }
+
+    public static PathSearchIndex build(MetaStore store, int[] names) {
+        String[] paths = new String[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            paths[i] = store.name(names[i]);
+        }
+        return build(paths, names);
+    }
+
+    static PathSearchIndex build(String[] paths, int[] names) {
+        int n = names.length;
+        SortEntry[] order = new SortEntry[n];
+        for (int i = 0; i < n; ++i) {
+            order[i] = new SortEntry(paths[i], names[i]);
+        }
+        Arrays.parallelSort(order);
+
+        int[] sortedNames = new int[n];
+        byte[][] utf8 = new byte[n][];
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; ++i) {
+            sortedNames[i] = order[i].name;
+            utf8[i] = order[i].path.getBytes(StandardCharsets.UTF_8);
+            order[i] = null;
+            Verify.verify(offsets[i] + (long) utf8[i].length <= Integer.MAX_VALUE, "Too many paths to index");
+            offsets[i + 1] = offsets[i] + utf8[i].length;
+        }
+        byte[] text = new byte[offsets[n]];
+        for (int i = 0; i < n; ++i) {
+            System.arraycopy(utf8[i], 0, text, offsets[i], utf8[i].length);
+        }
+
+        int bucketBits = MIN_BUCKET_BITS;
+        while (bucketBits < MAX_BUCKET_BITS && 1 << bucketBits < text.length) {
+            ++bucketBits;
+        }
+        int buckets = 1 << bucketBits;
+
+        // Counted first, then filled; a path is listed once per bucket however often its trigrams repeat.
+        int[] firstPosting = new int[buckets + 1];
+        int[] last = new int[buckets];
+        Arrays.fill(last, -1);
+        long total = 0;
+        for (int i = 0; i < n; ++i) {
+            for (int k = offsets[i]; k + 3 <= offsets[i + 1]; ++k) {
+                int b = bucket(text, k, bucketBits);
+                if (last[b] != i) {
+                    last[b] = i;
+                    ++firstPosting[b + 1];
+                    ++total;
+                }
+            }
+        }
+        Verify.verify(total <= Integer.MAX_VALUE - 8, "Too many paths to index");
+        for (int b = 0; b < buckets; ++b) {
+            firstPosting[b + 1] += firstPosting[b];
+        }
+
+        int[] postings = new int[(int) total];
+        int[] fill = Arrays.copyOf(firstPosting, buckets);
+        Arrays.fill(last, -1);
+        for (int i = 0; i < n; ++i) {
+            for (int k = offsets[i]; k + 3 <= offsets[i + 1]; ++k) {
+                int b = bucket(text, k, bucketBits);
+                if (last[b] != i) {
+                    last[b] = i;
+                    postings[fill[b]++] = i;
+                }
+            }
+        }
+
+        return new PathSearchIndex(sortedNames, text, offsets, bucketBits, firstPosting, postings);
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    // The i-th path in sorted order.
+    public int name(int i) {
+        return names[i];
+    }
+
+    public String path(int i) {
+        return new String(text, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+    }
+
+    // The names whose path contains the string, sorted by path.
+    public int[] substring(String s) {
+        byte[] q = s.getBytes(StandardCharsets.UTF_8);
+        int[] candidates = candidates(Collections.singletonList(q));
+        int count = 0;
+        for (int i : candidates) {
+            if (contains(i, q)) {
+                candidates[count++] = names[i];
+            }
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    // The names whose whole path matches the glob: '*' matches within one segment, '**' across segments,
+    // '?' matches one character and '[...]' one of a set.
+    public int[] glob(String glob) {
+        List<byte[]> literals = new ArrayList<>();
+        Pattern pattern = Pattern.compile(globToRegex(glob, literals));
+        return match(candidates(literals), pattern, true);
+    }
+
+    // The names whose path contains a match of the regular expression.
+    public int[] regex(String regex) {
+        Pattern pattern = Pattern.compile(regex);
+        return match(candidates(requiredLiterals(regex)), pattern, false);
+    }
+
+    private int[] match(int[] candidates, Pattern pattern, boolean whole) {
+        int count = 0;
+        Matcher m = pattern.matcher("");
+        for (int i : candidates) {
+            m.reset(path(i));
+            if (whole ? m.matches() : m.find()) {
+                candidates[count++] = names[i];
+            }
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    // The paths that have every trigram of the literals, in order; all paths if there are none.
+    private int[] candidates(List<byte[]> literals) {
+        List<int[]> ranges = new ArrayList<>();
+        for (byte[] literal : literals) {
+            for (int k = 0; k + 3 <= literal.length; ++k) {
+                int b = bucket(literal, k, bucketBits);
+                ranges.add(new int[] { firstPosting[b], firstPosting[b + 1] });
+            }
+        }
+        if (ranges.isEmpty()) {
+            int[] all = new int[names.length];
+            Arrays.setAll(all, i -> i);
+            return all;
+        }
+
+        ranges.sort(Comparator.comparingInt(r -> r[1] - r[0]));
+        int[] res = Arrays.copyOfRange(postings, ranges.get(0)[0], ranges.get(0)[1]);
+        int count = res.length;
+        for (int r = 1; r < ranges.size() && count > 0; ++r) {
+            count = intersect(res, count, ranges.get(r)[0], ranges.get(r)[1]);
+        }
+        return Arrays.copyOf(res, count);
+    }
+
+    // Keeps the first `count` values of `res` that are also in postings[from, to); the shorter list gallops
+    // through the longer one.
+    private int intersect(int[] res, int count, int from, int to) {
+        int kept = 0;
+        int lo = from;
+        for (int i = 0; i < count && lo < to; ++i) {
+            int v = res[i];
+            int step = 1;
+            int hi = lo;
+            while (hi < to && postings[hi] < v) {
+                lo = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            hi = Math.min(hi + 1, to);
+            int pos = Arrays.binarySearch(postings, lo, hi, v);
+            if (pos >= 0) {
+                res[kept++] = v;
+                lo = pos + 1;
+            } else {
+                lo = -pos - 1;
+            }
+        }
+        return kept;
+    }
+
+    private boolean contains(int i, byte[] q) {
+        int start = offsets[i];
+        int end = offsets[i + 1] - q.length;
+        outer:
+        for (int k = start; k <= end; ++k) {
+            for (int j = 0; j < q.length; ++j) {
+                if (text[k + j] != q[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static int bucket(byte[] bytes, int k, int bits) {
+        int h = (bytes[k] & 0xFF) << 16 | (bytes[k + 1] & 0xFF) << 8 | (bytes[k + 2] & 0xFF);
+        return (h * 0x9E3779B1) >>> (32 - bits);
+    }
+
+    static String globToRegex(String glob, List<byte[]> literals) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < glob.length(); ++i) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?' || c == '[') {
+                addLiteral(literals, literal);
+            }
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    ++i;
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if (c == '[') {
+                // The first member may be ']', as in "[]a]" or "[!]a]".
+                int start = i + 1 < glob.length() && (glob.charAt(i + 1) == '!' || glob.charAt(i + 1) == '^') ? i + 2 : i + 1;
+                int end = glob.indexOf(']', start + 1);
+                if (end == -1) {
+                    regex.append("\\[");
+                } else {
+                    // Members are escaped, so nothing in the set can open a nested class or an intersection.
+                    regex.append(start > i + 1 ? "[^" : "[");
+                    for (int k = start; k < end; ++k) {
+                        char m = glob.charAt(k);
+                        regex.append("\\[]&^".indexOf(m) == -1 ? "" : "\\").append(m);
+                    }
+                    regex.append(']');
+                    i = end;
+                }
+            } else {
+                regex.append(Character.isLetterOrDigit(c) || Character.isSurrogate(c) ? "" : "\\").append(c);
+                literal.append(c);
+            }
+        }
+        addLiteral(literals, literal);
+        return regex.toString();
+    }
+
+    // Runs of plain characters every match must contain. Only the top level of the expression is looked at, and
+    // an expression with alternatives, flags, quoting or unusual escapes requires nothing.
+    static List<byte[]> requiredLiterals(String regex) {
+        List<byte[]> literals = new ArrayList<>();
+        if (regex.contains("|") || regex.contains("(?") || regex.contains("\\Q")) {
+            return literals;
+        }
+
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < regex.length(); ++i) {
+            char c = regex.charAt(i);
+            int atom = -1;
+            if (c == '\\') {
+                if (++i == regex.length()) {
+                    return new ArrayList<>();
+                }
+                char e = regex.charAt(i);
+                if (!Character.isLetterOrDigit(e)) {
+                    atom = regex.codePointAt(i);
+                } else if ("dDwWsSbBAzZGhHvVR".indexOf(e) == -1) {
+                    // Escapes like \x41, \u00e9 or \p{L} go on after their letter.
+                    return new ArrayList<>();
+                }
+            } else if (c == '(' || c == '[') {
+                i = skipGroup(regex, i);
+            } else if (c == ')' || c == ']' || c == '}') {
+                return new ArrayList<>();
+            } else if (c != '.' && c != '^' && c != '$' && c != '*' && c != '+' && c != '?' && c != '{') {
+                atom = regex.codePointAt(i);
+            }
+
+            // A supplementary character is one atom, so a quantifier after it applies to both its chars. A lone
+            // surrogate has no UTF-8 form and ends the literal.
+            if (atom != -1 && Character.isSupplementaryCodePoint(atom)) {
+                ++i;
+            } else if (atom != -1 && Character.isSurrogate((char) atom)) {
+                atom = -1;
+            }
+
+            boolean optional = false;
+            boolean repeated = false;
+            if (i + 1 < regex.length()) {
+                char q = regex.charAt(i + 1);
+                if (q == '*' || q == '?' || q == '{') {
+                    optional = true;
+                } else if (q == '+') {
+                    repeated = true;
+                }
+            }
+
+            if (atom != -1 && !optional) {
+                literal.appendCodePoint(atom);
+            }
+            if (atom == -1 || optional || repeated) {
+                addLiteral(literals, literal);
+            }
+            if (optional || repeated) {
+                i = skipQuantifier(regex, i + 1);
+            }
+        }
+        addLiteral(literals, literal);
+        return literals;
+    }
+
+    // The index of the last character of the quantifier starting at i, with a lazy or possessive suffix.
+    private static int skipQuantifier(String regex, int i) {
+        if (regex.charAt(i) == '{') {
+            int end = regex.indexOf('}', i);
+            i = end == -1 ? regex.length() - 1 : end;
+        }
+        if (i + 1 < regex.length() && (regex.charAt(i + 1) == '?' || regex.charAt(i + 1) == '+')) {
+            ++i;
+        }
+        return i;
+    }
+
+    // The index of the bracket that closes the group or class opened at i.
+    private static int skipGroup(String regex, int i) {
+        if (regex.charAt(i) == '[') {
+            // A ']' right after the opening bracket, or after its negation, is a member of the class.
+            int k = i + 1;
+            if (k < regex.length() && regex.charAt(k) == '^') {
+                ++k;
+            }
+            if (k < regex.length() && regex.charAt(k) == ']') {
+                ++k;
+            }
+            for (int depth = 1; k < regex.length(); ++k) {
+                char c = regex.charAt(k);
+                if (c == '\\') {
+                    ++k;
+                } else if (c == '[') {
+                    ++depth;
+                } else if (c == ']' && --depth == 0) {
+                    return k;
+                }
+            }
+            return regex.length() - 1;
+        }
+
+        int depth = 0;
+        for (int k = i; k < regex.length(); ++k) {
+            char c = regex.charAt(k);
+            if (c == '\\') {
+                ++k;
+            } else if (c == '[') {
+                k = skipGroup(regex, k);
+            } else if (c == '(') {
+                ++depth;
+            } else if (c == ')' && --depth == 0) {
+                return k;
+            }
+        }
+        return regex.length() - 1;
+    }
+
+    private static final class SortEntry implements Comparable<SortEntry> {
+        final String path;
+        final int name;
+
+        SortEntry(String path, int name) {
+            this.path = path;
+            this.name = name;
+        }
+
+        @Override
+        public int compareTo(SortEntry o) {
+            return path.compareTo(o.path);
+        }
+    }
+
+    private static void addLiteral(List<byte[]> literals, StringBuilder literal) {
+        if (literal.length() > 0) {
+            literals.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+            literal.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.dreipic;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import org.dreipic.util.StringArena;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
+
+// Paths as a trie of '/'-separated segments: every directory prefix is one node, stored once, and a path is the
+// id of its last node. Empty segments are kept, so "/a//b/" comes back exactly as it went in.
+public final class PathTrie {
+    public static final int ROOT = 0;
+
+    private static final int MIN_CAPACITY = 16;
+    private static final byte SEPARATOR = '/';
+
+    private final StringArena segments;
+
+    private int[] parent;
+    private int[] segment;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int size;
+
+    // (parent, segment) -> child
+    private long[] tableKeys;
+    private int[] tableValues;
+    private int mask;
+
+    PathTrie() {
+        this(new StringArena(0));
+    }
+
+    private PathTrie(StringArena segments) {
+        this.segments = segments;
+        parent = new int[MIN_CAPACITY];
+        segment = new int[MIN_CAPACITY];
+        firstChild = new int[MIN_CAPACITY];
+        nextSibling = new int[MIN_CAPACITY];
+        allocateTable(MIN_CAPACITY);
+
+        parent[ROOT] = -1;
+        segment[ROOT] = -1;
+        firstChild[ROOT] = -1;
+        nextSibling[ROOT] = -1;
+        size = 1;
+    }
+
+    // Takes the bytes between the buffer's position and limit, without moving the position.
+    int add(ByteBuffer utf8) {
+        int node = ROOT;
+        int start = utf8.position();
+        int end = utf8.limit();
+        for (int i = start; i <= end; ++i) {
+            if (i == end || utf8.get(i) == SEPARATOR) {
+                ByteBuffer seg = utf8.duplicate();
+                seg.limit(i);
+                seg.position(start);
+                node = child(node, segments.intern(seg), true);
+                start = i + 1;
+            }
+        }
+        return node;
+    }
+
+    void trim() {
+        segments.trim();
+        parent = Arrays.copyOf(parent, size);
+        segment = Arrays.copyOf(segment, size);
+        firstChild = Arrays.copyOf(firstChild, size);
+        nextSibling = Arrays.copyOf(nextSibling, size);
+    }
+
+    void write(DataOutput out) throws IOException {
+        segments.write(out);
+        out.writeInt(size);
+        for (int id = 1; id < size; ++id) {
+            out.writeInt(parent[id]);
+            out.writeInt(segment[id]);
+        }
+    }
+
+    // Reads what write() wrote; nodes are added in id order, so they keep their ids and their sibling order.
+    static PathTrie read(ByteBuffer buf) {
+        PathTrie trie = new PathTrie(StringArena.read(buf));
+        int n = buf.getInt();
+        Verify.verify(n >= 1 && n - 1 <= buf.remaining() / 8, "Bad path trie size: %s", n);
+        for (int id = 1; id < n; ++id) {
+            int p = buf.getInt();
+            int seg = buf.getInt();
+            Verify.verify(p >= 0 && p < id && seg >= 0 && seg < trie.segments.size(), "Bad path trie node: %s", id);
+            Verify.verify(trie.child(p, seg, true) == id, "Duplicate path trie node: %s", id);
+        }
+        return trie;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int find(String path) {
+        int node = ROOT;
+        int start = 0;
+        for (;;) {
+            int i = path.indexOf(SEPARATOR, start);
+            int seg = segments.find(i == -1 ? path.substring(start) : path.substring(start, i));
+            if (seg == -1) {
+                return -1;
+            }
+            node = child(node, seg, false);
+            if (node == -1 || i == -1) {
+                return node;
+            }
+            start = i + 1;
+        }
+    }
+
+    public String path(int node) {
+        Preconditions.checkArgument(node != ROOT, "The root has no path");
+        Preconditions.checkElementIndex(node, size);
+
+        int len = -1;
+        for (int n = node; n != ROOT; n = parent[n]) {
+            len += segments.length(segment[n]) + 1;
+        }
+
+        byte[] bytes = new byte[len];
+        int pos = len;
+        for (int n = node; n != ROOT; n = parent[n]) {
+            ByteBuffer seg = segments.bytes(segment[n]);
+            pos -= seg.remaining();
+            seg.get(bytes, pos, seg.remaining());
+            if (pos > 0) {
+                bytes[--pos] = SEPARATOR;
+            }
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public String segment(int node) {
+        Preconditions.checkArgument(node != ROOT, "The root has no segment");
+        return segments.get(segment[node]);
+    }
+
+    public int parent(int node) {
+        return parent[node];
+    }
+
+    public int firstChild(int node) {
+        return firstChild[node];
+    }
+
+    public int nextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    public boolean isPrefix(int prefix, int node) {
+        for (int n = node; n != -1; n = parent[n]) {
+            if (n == prefix) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Depth first, without the node itself.
+    public void forEachDescendant(int node, IntConsumer consumer) {
+        Preconditions.checkElementIndex(node, size);
+        int n = firstChild[node];
+        while (n != -1) {
+            consumer.accept(n);
+            if (firstChild[n] != -1) {
+                n = firstChild[n];
+                continue;
+            }
+            while (n != node && nextSibling[n] == -1) {
+                n = parent[n];
+            }
+            n = n == node ? -1 : nextSibling[n];
+        }
+    }
+
+    private int child(int node, int seg, boolean create) {
+        long key = (long) node << 32 | seg;
+        int slot = spread(key) & mask;
+        for (;;) {
+            int value = tableValues[slot];
+            if (value == -1) {
+                break;
+            }
+            if (tableKeys[slot] == key) {
+                return value;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (!create) {
+            return -1;
+        }
+
+        if (size == parent.length) {
+            Verify.verify(size <= Integer.MAX_VALUE / 2, "Path trie too large");
+            int n = size * 2;
+            parent = Arrays.copyOf(parent, n);
+            segment = Arrays.copyOf(segment, n);
+            firstChild = Arrays.copyOf(firstChild, n);
+            nextSibling = Arrays.copyOf(nextSibling, n);
+        }
+        int id = size++;
+        parent[id] = node;
+        segment[id] = seg;
+        firstChild[id] = -1;
+        nextSibling[id] = firstChild[node];
+        firstChild[node] = id;
+
+        if (size * 4L > tableValues.length * 3L) {
+            growTable();
+        } else {
+            tableKeys[slot] = key;
+            tableValues[slot] = id;
+        }
+        return id;
+    }
+
+    private static int spread(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void growTable() {
+        Verify.verify(tableValues.length <= Integer.MAX_VALUE / 2, "Path trie too large");
+        allocateTable(tableValues.length * 2);
+        for (int id = 1; id < size; ++id) {
+            long key = (long) parent[id] << 32 | segment[id];
+            int slot = spread(key) & mask;
+            while (tableValues[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            tableKeys[slot] = key;
+            tableValues[slot] = id;
+        }
+    }
+
+    private void allocateTable(int capacity) {
+        tableKeys = new long[capacity];
+        tableValues = new int[capacity];
+        Arrays.fill(tableValues, -1);
+        mask = capacity - 1;
+    }
+}
@@ -0,0 +1,114 @@
+package org.dreipic;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.dreipic.struct.MappedMetaFile;
+import org.dreipic.util.FixedKeyIntMap;
+
+import com.google.common.base.Verify;
+
+// The tree after the last transaction, with the file paths grouped by data: each data is assembled once,
+// then every other path with the same hash is linked to it.
+final class RestorePlan {
+    final List<String> directories;
+    final List<Group> groups;
+    final int fileCount;
+
+    private RestorePlan(List<String> directories, List<Group> groups, int fileCount) {
+        this.directories = directories;
+        this.groups = groups;
+        this.fileCount = fileCount;
+    }
+
+    static RestorePlan build(List<MappedMetaFile> metas) {
+        NavigableMap<String, byte[]> files = new TreeMap<>();
+        NavigableSet<String> dirs = new TreeSet<>();
+
+        for (MappedMetaFile meta : metas) {
+            MappedMetaFile.Entry path = meta.entries();
+            while (path.next()) {
+                if (path.isData()) {
+                    continue;
+                }
+
+                String name = normalize(path.path());
+                switch (path.type()) {
+                case FILE:
+                case ARCHIVE:
+                    byte[] hash = new byte[32];
+                    path.getHash(hash);
+                    files.put(name, hash);
+                    dirs.remove(name);
+                    break;
+                case DIRECTORY:
+                    dirs.add(name);
+                    files.remove(name);
+                    break;
+                case DELETED:
+                    // A deleted directory takes everything below it along.
+                    files.remove(name);
+                    files.subMap(name + "/", true, name + "0", false).clear();
+                    dirs.remove(name);
+                    dirs.subSet(name + "/", true, name + "0", false).clear();
+                    break;
+                default:
+                    throw new IllegalStateException("" + path.type());
+                }
+            }
+        }
+
+        FixedKeyIntMap groupMap = new FixedKeyIntMap(32, 0);
+        List<Group> groups = new ArrayList<>();
+        for (String name : files.keySet()) {
+            byte[] hash = files.get(name);
+            int idx = groupMap.get(hash);
+            if (idx == -1) {
+                groupMap.put(hash, groups.size());
+                groups.add(new Group(hash));
+                idx = groups.size() - 1;
+            }
+            groups.get(idx).paths.add(name);
+        }
+
+        return new RestorePlan(Collections.unmodifiableList(new ArrayList<>(dirs)), groups, files.size());
+    }
+
+    static Path resolve(Path root, String name) {
+        Path path = root.resolve(name).normalize();
+        Verify.verify(path.startsWith(root) && !path.equals(root), "Path outside of destination: [%s]", name);
+        return path;
+    }
+
+    private static String normalize(String path) {
+        String name = path;
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        while (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+
+        Verify.verify(!name.isEmpty(), "Empty path: [%s]", path);
+        for (String segment : name.split("/", -1)) {
+            Verify.verify(!segment.isEmpty() && !segment.equals(".") && !segment.equals(".."), "Bad path: [%s]", path);
+        }
+        return name;
+    }
+
+    static final class Group {
+        final byte[] hash;
+        final List<String> paths;
+
+        Group(byte[] hash) {
+            this.hash = hash;
+            paths = new ArrayList<>();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.dreipic;
+
+import java.util.function.IntConsumer;
+
+import org.dreipic.util.PersistentIntMap;
+
+import com.google.common.base.Preconditions;
+
+// The tree as of one transaction: for every name the path entry that last set it, unless it was deleted since.
+// Snapshots are immutable and share all unchanged parts with the snapshot they were derived from.
+public final class Snapshot {
+    private final MetaStore store;
+    private final int tx;
+
+    // name -> path entry
+    private final PersistentIntMap entries;
+    // name -> number of entries strictly below it, absent when there are none
+    private final PersistentIntMap below;
+
+    private Snapshot(MetaStore store, int tx, PersistentIntMap entries, PersistentIntMap below) {
+        this.store = store;
+        this.tx = tx;
+        this.entries = entries;
+        this.below = below;
+    }
+
+    static Snapshot empty(MetaStore store) {
+        PersistentIntMap empty = PersistentIntMap.empty(store.nameCount());
+        return new Snapshot(store, -1, empty, empty);
+    }
+
+    // Costs O(entries of the transaction), plus for a deleted directory a walk of the name trie below it. The walk
+    // only descends into names with entries below them in this snapshot, but at each of those it visits every child
+    // the trie has, including names that never existed in this snapshot.
+    Snapshot next() {
+        int t = tx + 1;
+        Preconditions.checkElementIndex(t, store.txCount());
+
+        Builder b = new Builder();
+        for (int p = store.txFirstPath(t); p < store.txFirstPath(t + 1); ++p) {
+            int n = store.pathName(p);
+            switch (store.pathType(p)) {
+            case FILE:
+            case ARCHIVE:
+            case DIRECTORY:
+                b.set(n, p);
+                break;
+            case DELETED:
+                b.removeTree(n);
+                break;
+            default:
+                throw new IllegalStateException("" + store.pathType(p));
+            }
+        }
+        return new Snapshot(store, t, b.entries, b.below);
+    }
+
+    // The index of the transaction in the store, -1 before the first one.
+    public int tx() {
+        return tx;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int entry(int name) {
+        return entries.get(name);
+    }
+
+    public int fileEntry(int name) {
+        int p = entries.get(name);
+        return p != -1 && store.isFile(p) ? p : -1;
+    }
+
+    // A name exists if it has an entry itself or anything below it does.
+    public boolean exists(int name) {
+        return name == PathTrie.ROOT || entries.get(name) != -1 || below.get(name) != -1;
+    }
+
+    public void forEachChild(int name, IntConsumer consumer) {
+        PathTrie names = store.names();
+        for (int n = names.firstChild(name); n != -1; n = names.nextSibling(n)) {
+            if (exists(n)) {
+                consumer.accept(n);
+            }
+        }
+    }
+
+    public void forEachEntry(PersistentIntMap.EntryConsumer consumer) {
+        entries.forEach(consumer);
+    }
+
+    private final class Builder {
+        PersistentIntMap entries = Snapshot.this.entries;
+        PersistentIntMap below = Snapshot.this.below;
+
+        void set(int n, int p) {
+            if (entries.get(n) == -1) {
+                addBelow(n, 1);
+            }
+            entries = entries.put(n, p);
+        }
+
+        void removeTree(int n) {
+            if (below.get(n) != -1) {
+                PathTrie names = store.names();
+                for (int c = names.firstChild(n); c != -1; c = names.nextSibling(c)) {
+                    removeTree(c);
+                }
+            }
+            if (entries.get(n) != -1) {
+                entries = entries.remove(n);
+                addBelow(n, -1);
+            }
+        }
+
+        private void addBelow(int n, int delta) {
+            PathTrie names = store.names();
+            for (int a = names.parent(n); a != PathTrie.ROOT; a = names.parent(a)) {
+                int count = Math.max(0, below.get(a)) + delta;
+                below = count == 0 ? below.remove(a) : below.put(a, count);
+            }
+        }
+    }
+}
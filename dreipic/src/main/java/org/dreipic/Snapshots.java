@@ -0,0 +1,35 @@
+package org.dreipic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+// Snapshots of a store as of each transaction, made on demand by replaying transactions on top of the last one made.
+// All of them are kept: consecutive snapshots share everything but what the transaction between them changed.
+public final class Snapshots {
+    private final MetaStore store;
+    private final List<Snapshot> snapshots = new ArrayList<>();
+
+    public Snapshots(MetaStore store) {
+        this.store = store;
+        snapshots.add(Snapshot.empty(store));
+    }
+
+    public MetaStore store() {
+        return store;
+    }
+
+    // The tree right after transaction t, or before the first one for t == -1.
+    public synchronized Snapshot at(int t) {
+        Preconditions.checkArgument(t >= -1 && t < store.txCount(), "%s", t);
+        while (snapshots.size() <= t + 1) {
+            snapshots.add(snapshots.get(snapshots.size() - 1).next());
+        }
+        return snapshots.get(t + 1);
+    }
+
+    public Snapshot latest() {
+        return at(store.txCount() - 1);
+    }
+}
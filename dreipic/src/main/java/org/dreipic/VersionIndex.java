@@ -0,0 +1,188 @@
+package org.dreipic;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.dreipic.struct.StructPathType;
+
+import com.google.common.base.Preconditions;
+
+// The path entries of every name ordered by the timestamp of their transaction, in flat arrays: the versions of
+// name n are [first[n], first[n + 1]). Entries of one transaction keep their order within it.
+public final class VersionIndex {
+    private final MetaStore store;
+
+    private final int[] first;
+    private final int[] paths;
+    private final long[] times;
+
+    // The same for DELETED entries only, which also remove everything below their name.
+    private final int[] firstDeleted;
+    private final int[] deletedPaths;
+    private final long[] deletedTimes;
+
+    private VersionIndex(MetaStore store, int[] first, int[] paths, long[] times, int[] firstDeleted,
+            int[] deletedPaths, long[] deletedTimes)
+    {
+        this.store = store;
+        this.first = first;
+        this.paths = paths;
+        this.times = times;
+        this.firstDeleted = firstDeleted;
+        this.deletedPaths = deletedPaths;
+        this.deletedTimes = deletedTimes;
+    }
+
+    public static VersionIndex build(MetaStore store) {
+        int nameCount = store.nameCount();
+        int pathCount = store.pathCount();
+
+        // Path ids follow the transactions, so ordering them by (timestamp, id) only moves whole transactions.
+        // The sort is stable, transactions with equal timestamps stay in id order.
+        Integer[] txOrder = new Integer[store.txCount()];
+        for (int t = 0; t < txOrder.length; ++t) {
+            txOrder[t] = t;
+        }
+        Arrays.sort(txOrder, Comparator.comparingLong(store::txTimestamp));
+
+        int[] first = new int[nameCount + 1];
+        int[] firstDeleted = new int[nameCount + 1];
+        int deletedCount = 0;
+        for (int p = 0; p < pathCount; ++p) {
+            int n = store.pathName(p);
+            ++first[n + 1];
+            if (store.pathType(p) == StructPathType.DELETED) {
+                ++firstDeleted[n + 1];
+                ++deletedCount;
+            }
+        }
+        for (int n = 0; n < nameCount; ++n) {
+            first[n + 1] += first[n];
+            firstDeleted[n + 1] += firstDeleted[n];
+        }
+
+        int[] paths = new int[pathCount];
+        long[] times = new long[pathCount];
+        int[] deletedPaths = new int[deletedCount];
+        long[] deletedTimes = new long[deletedCount];
+        int[] fill = Arrays.copyOf(first, nameCount);
+        int[] fillDeleted = Arrays.copyOf(firstDeleted, nameCount);
+        for (int t : txOrder) {
+            long time = store.txTimestamp(t);
+            for (int p = store.txFirstPath(t); p < store.txFirstPath(t + 1); ++p) {
+                int n = store.pathName(p);
+                int i = fill[n]++;
+                paths[i] = p;
+                times[i] = time;
+                if (store.pathType(p) == StructPathType.DELETED) {
+                    int k = fillDeleted[n]++;
+                    deletedPaths[k] = p;
+                    deletedTimes[k] = time;
+                }
+            }
+        }
+
+        return new VersionIndex(store, first, paths, times, firstDeleted, deletedPaths, deletedTimes);
+    }
+
+    public MetaStore store() {
+        return store;
+    }
+
+    public int versionCount(int name) {
+        return first[name + 1] - first[name];
+    }
+
+    // The i-th path entry of the name, oldest first.
+    public int version(int name, int i) {
+        Preconditions.checkElementIndex(i, versionCount(name));
+        return paths[first[name] + i];
+    }
+
+    public long versionTime(int name, int i) {
+        Preconditions.checkElementIndex(i, versionCount(name));
+        return times[first[name] + i];
+    }
+
+    // The number of versions with a timestamp before the time; versions [0, rank) are older.
+    public int rank(int name, long time) {
+        return lowerBound(times, first[name], first[name + 1], time) - first[name];
+    }
+
+    // The last path entry with a timestamp at or before the time, whatever its type, or -1.
+    public int floor(int name, long time) {
+        int i = upperBound(times, first[name], first[name + 1], time) - first[name];
+        return i == 0 ? -1 : version(name, i - 1);
+    }
+
+    // The last path entry strictly before the time, or -1.
+    public int latestBefore(int name, long time) {
+        int i = rank(name, time);
+        return i == 0 ? -1 : version(name, i - 1);
+    }
+
+    // The path entries with a timestamp in [from, to), oldest first.
+    public int[] between(int name, long from, long to) {
+        int lo = rank(name, from);
+        int hi = Math.max(lo, rank(name, to));
+        return Arrays.copyOfRange(paths, first[name] + lo, first[name] + hi);
+    }
+
+    // The entry the name had at the time, or -1 if it did not exist: never written, deleted, or deleted along with
+    // a directory above it. Costs a binary search per level of the path.
+    public int asOf(int name, long time) {
+        int p = floor(name, time);
+        if (p == -1 || store.pathType(p) == StructPathType.DELETED) {
+            return -1;
+        }
+
+        long since = store.txTimestamp(store.pathTx(p));
+        PathTrie names = store.names();
+        for (int a = names.parent(name); a != PathTrie.ROOT; a = names.parent(a)) {
+            if (deletedAfter(a, since, p, time)) {
+                return -1;
+            }
+        }
+        return p;
+    }
+
+    // Whether the name was deleted after entry p, which has the timestamp `since`, and no later than `time`.
+    private boolean deletedAfter(int name, long since, int p, long time) {
+        int from = firstDeleted[name];
+        int to = firstDeleted[name + 1];
+        int i = lowerBound(deletedTimes, from, to, since);
+        // Entries of the same transaction come in id order.
+        while (i < to && deletedTimes[i] == since && deletedPaths[i] < p) {
+            ++i;
+        }
+        return i < to && deletedTimes[i] <= time;
+    }
+
+    private static int upperBound(long[] a, int from, int to, long key) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int lowerBound(long[] a, int from, int to, long key) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -2,29 +2,23 @@ package org.dreipic.gui;
 
 import java.awt.BorderLayout;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.UncheckedIOException;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JSpinner;
 import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingUtilities;
 
-import org.dreipic.util.DecryptUtils;
-
-import com.google.common.base.Verify;
+import org.dreipic.DecryptEngine;
 
 public final class DreipicDecrypt {
     private final MnemonicKeyPanel keyPanel;
     private final JTextField txtPath;
+    private final JSpinner spnThreads;
     private final JButton btnDecrypt;
     private final JTextField txtProgress;
 
@@ -38,6 +32,9 @@ public final class DreipicDecrypt {
         txtPath = new JTextField();
         SwingUtils.onTextChanged(txtPath, this::updateState);
 
+        int cpus = Runtime.getRuntime().availableProcessors();
+        spnThreads = new JSpinner(new SpinnerNumberModel(cpus, 1, 256, 1));
+
         btnDecrypt = SwingUtils.newButton("Decrypt", true, true, this::onDecryptClick);
         txtProgress = new JTextField("Nothing done");
         txtProgress.setEditable(false);
@@ -46,8 +43,13 @@ public final class DreipicDecrypt {
         panPath.add(txtPath, BorderLayout.CENTER);
         panPath.add(btnDecrypt, BorderLayout.EAST);
 
+        JPanel panThreads = new JPanel(new BorderLayout());
+        panThreads.add(new JLabel("Threads"), BorderLayout.WEST);
+        panThreads.add(spnThreads, BorderLayout.CENTER);
+
         JPanel panDecrypt = new JPanel(new BorderLayout());
         panDecrypt.add(panPath, BorderLayout.NORTH);
+        panDecrypt.add(panThreads, BorderLayout.CENTER);
         panDecrypt.add(txtProgress, BorderLayout.SOUTH);
 
         mainPanel = new JPanel(new BorderLayout());
@@ -75,30 +77,37 @@ public final class DreipicDecrypt {
         byte[] key = keyPanel.getKey();
         String path = txtPath.getText();
         File dir = new File(path);
-        List<File> files = getTargetFiles(dir);
+        int threads = (Integer) spnThreads.getValue();
 
-        updateProgress(0, files.size());
+        txtProgress.setText("Scanning...");
 
-        Thread thread = new Thread(() -> decryptFiles(key, files));
+        Thread thread = new Thread(() -> decryptFiles(key, dir, threads));
         thread.start();
     }
 
-    private void decryptFiles(byte[] key, List<File> files) {
+    private void decryptFiles(byte[] key, File dir, int threads) {
         try {
-            int done = 0;
-            for (File file : files) {
-                try {
-                    decryptFile(file, key);
-                } catch (Throwable e) {
+            DecryptEngine engine = new DecryptEngine(key, threads);
+            engine.decryptDir(dir, new DecryptEngine.Listener() {
+                @Override
+                public void onProgress(int done, int total) {
+                    SwingUtilities.invokeLater(() -> updateProgress(done, total));
+                }
+
+                @Override
+                public void onFailure(File file, Throwable e) {
                     e.printStackTrace();
                     SwingUtilities.invokeLater(() -> txtProgress.setText("Failed: " + file));
-                    break;
                 }
 
-                ++done;
-                int doneF = done;
-                SwingUtilities.invokeLater(() -> updateProgress(doneF, files.size()));
-            }
+                @Override
+                public void onFinish(List<String> stageReport) {
+                    stageReport.forEach(System.out::println);
+                }
+            });
+        } catch (Throwable e) {
+            e.printStackTrace();
+            SwingUtilities.invokeLater(() -> txtProgress.setText("Failed: " + e));
         } finally {
             SwingUtilities.invokeLater(() -> {
                 decrypting = false;
@@ -107,35 +116,10 @@ public final class DreipicDecrypt {
         }
     }
 
-    private void decryptFile(File file, byte[] key) {
-        File dir = file.getParentFile();
-        File tempFile = new File(dir, ".tempfile");
-
-        boolean dec;
-        try (InputStream in = new FileInputStream(file)) {
-            try (OutputStream out = new FileOutputStream(tempFile)) {
-                dec = DecryptUtils.decryptFile(key, in, out);
-            }
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
-
-        if (dec) {
-            Verify.verify(file.delete());
-            Verify.verify(tempFile.renameTo(file));
-        } else {
-            Verify.verify(tempFile.delete());
-        }
-    }
-
     private void updateProgress(int done, int total) {
         txtProgress.setText("Processed: " + done + " / " + total);
     }
 
-    private static List<File> getTargetFiles(File dir) {
-        return Stream.of(dir.listFiles()).filter(f -> f.isFile() && !f.getName().equals(".tempfile")).collect(Collectors.toList());
-    }
-
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
             DreipicDecrypt dec = new DreipicDecrypt();
@@ -1,17 +1,15 @@
 package org.dreipic.gui.exp;
 
-import java.util.List;
-
-import org.dreipic.struct.StructMeta;
+import org.dreipic.MetaStore;
 
 final class ConnectDetails {
     final FtpCredentials credentials;
     final byte[] dataKey;
-    final List<StructMeta> metas;
+    final MetaStore store;
 
-    ConnectDetails(FtpCredentials credentials, byte[] dataKey, List<StructMeta> metas) {
+    ConnectDetails(FtpCredentials credentials, byte[] dataKey, MetaStore store) {
         this.credentials = credentials;
         this.dataKey = dataKey;
-        this.metas = metas;
+        this.store = store;
     }
 }
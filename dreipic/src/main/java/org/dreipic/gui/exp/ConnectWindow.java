@@ -4,12 +4,8 @@ import java.awt.BorderLayout;
 import java.awt.GridLayout;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.function.Consumer;
 
 import javax.swing.BorderFactory;
@@ -20,10 +16,11 @@ import javax.swing.SwingUtilities;
 
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
+import org.dreipic.MetaStore;
 import org.dreipic.gui.MnemonicKeyPanel;
 import org.dreipic.gui.SwingUtils;
-import org.dreipic.struct.StructMeta;
-import org.dreipic.util.DecryptUtils;
+import org.dreipic.struct.MappedMetaFile;
+import org.dreipic.util.Decryptor;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
@@ -104,24 +101,17 @@ final class ConnectWindow {
     }
 
     private void connect(FtpCredentials creds, byte[] dataKey) {
-        List<StructMeta> metas = new ArrayList<>();
+        MetaStore store = null;
 
         try {
             logPanel.clear();
 
+            MetaCache cache = new MetaCache(MetaCache.defaultDir(creds), dataKey);
+            MetaStore[] res = new MetaStore[1];
             FtpConnector.connect(creds, logPanel, ftp -> {
-                List<Long> txs = listTransactions(ftp);
-                logPanel.log("Transactions: %d", txs.size());
-
-                int i = 0;
-                int n = txs.size();
-                for (long tx : txs) {
-                    StructMeta meta = downloadMeta(ftp, dataKey, tx, i, n);
-                    metas.add(meta);
-                    logPanel.log("Decrypted tx [%d/%d]: %d", i, n, tx);
-                    ++i;
-                }
+                res[0] = loadStore(ftp, cache, dataKey);
             });
+            store = res[0];
         } catch (Throwable e) {
             String s = Throwables.getStackTraceAsString(e);
             logPanel.log("ERROR: %s", s);
@@ -132,38 +122,73 @@ final class ConnectWindow {
             });
         }
 
+        MetaStore result = store != null ? store : MetaStore.builder().build();
         SwingUtilities.invokeLater(() -> {
-            result = new ConnectDetails(creds, dataKey, metas);
+            this.result = new ConnectDetails(creds, dataKey, result);
             frame.dispose();
         });
     }
 
-    private StructMeta downloadMeta(FTPClient ftp, byte[] dataKey, long tx, int i, int n) {
-        String path = "/meta/" + tx;
-        byte[] rawData = FtpConnector.download(ftp, path);
-        logPanel.log("Loaded tx [%d/%d]: %d (%,d bytes)", i, n, tx, rawData.length);
+    private MetaStore loadStore(FTPClient ftp, MetaCache cache, byte[] dataKey) {
+        FTPFile[] files = listTransactions(ftp);
+        int n = files.length;
+        long[] txs = new long[n];
+        long[] sizes = new long[n];
+        for (int i = 0; i < n; ++i) {
+            txs[i] = Long.parseLong(files[i].getName());
+            sizes[i] = files[i].getSize();
+        }
+        logPanel.log("Transactions: %d", n);
+
+        // Only transactions the cached index does not hold yet are decrypted, and only uncached ones downloaded.
+        MetaCache.Index index = cache.readIndex();
+        int cached = index == null ? -1 : index.matchingPrefix(txs, sizes);
+        MetaStore.Builder builder = cached == -1 ? MetaStore.builder() : index.builder;
+        int start = Math.max(0, cached);
+        logPanel.log("Cached index: %d transactions", start);
+
+        try (Decryptor decryptor = new Decryptor(dataKey)) {
+            for (int i = start; i < n; ++i) {
+                MappedMetaFile meta = loadMeta(ftp, cache, decryptor, txs[i], sizes[i], i, n);
+                builder.add(txs[i], meta);
+                logPanel.log("Decrypted tx [%d/%d]: %d", i, n, txs[i]);
+            }
+        }
 
-        byte[] data = DecryptUtils.decryptData(dataKey, rawData);
-        InputStream in = new ByteArrayInputStream(data);
-        DataInputStream din = new DataInputStream(in);
-        StructMeta meta = new StructMeta(din);
-        return meta;
+        MetaStore store = builder.build();
+        if (start < n) {
+            try {
+                cache.writeIndex(txs, sizes, store);
+            } catch (RuntimeException e) {
+                logPanel.log("Failed to write cached index: %s", e);
+            }
+        }
+        return store;
+    }
+
+    private MappedMetaFile loadMeta(FTPClient ftp, MetaCache cache, Decryptor decryptor, long tx, long size, int i, int n) {
+        if (cache.hasMeta(tx, size)) {
+            logPanel.log("Cached tx [%d/%d]: %d (%,d bytes)", i, n, tx, size);
+        } else {
+            FtpConnector.retrieve(ftp, "/meta/" + tx, in -> {
+                cache.putMeta(tx, size, in);
+                return null;
+            });
+            logPanel.log("Loaded tx [%d/%d]: %d (%,d bytes)", i, n, tx, size);
+        }
+        return cache.loadMeta(tx, decryptor);
     }
 
-    private List<Long> listTransactions(FTPClient ftp) {
+    private FTPFile[] listTransactions(FTPClient ftp) {
         FTPFile[] ftpFiles = FtpConnector.listFiles(ftp, "/meta");
-        List<Long> txs = new ArrayList<>();
         for (FTPFile f : ftpFiles) {
             boolean isDir = f.isDirectory();
             boolean isFile = f.isFile();
             Preconditions.checkState(isFile, "%s", f);
             Preconditions.checkState(!isDir, "%s", f);
-            String name = f.getName();
-            long tx = Long.parseLong(name);
-            txs.add(tx);
         }
-        Collections.sort(txs);
-        return txs;
+        Arrays.sort(ftpFiles, Comparator.comparingLong(f -> Long.parseLong(f.getName())));
+        return ftpFiles;
     }
 
     static void show(Consumer<ConnectDetails> callback) {
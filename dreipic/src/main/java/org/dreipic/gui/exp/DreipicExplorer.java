@@ -10,7 +10,7 @@ public final class DreipicExplorer {
         SwingUtilities.invokeLater(() -> {
             ConnectWindow.show(connect -> {
                 if (connect != null) {
-                    FilesWindow.show(connect.credentials, connect.dataKey, connect.metas);
+                    FilesWindow.show(connect.credentials, connect.dataKey, connect.store);
                 }
             });
         });
@@ -1,27 +1,25 @@
 package org.dreipic.gui.exp;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.UncheckedIOException;
-import java.security.DigestOutputStream;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.xml.bind.DatatypeConverter;
 
-import org.apache.commons.net.ftp.FTPClient;
 import org.dreipic.DreipicExtract;
-import org.dreipic.struct.StructBlockFile;
-import org.dreipic.struct.StructMeta;
-import org.dreipic.struct.StructMetaData;
-import org.dreipic.struct.StructMetaPath;
+import org.dreipic.MetaStore;
+import org.dreipic.struct.MappedBlockFile;
 import org.dreipic.struct.StructPathType;
+import org.dreipic.util.AssemblyWriter;
 import org.dreipic.util.DecryptUtils;
-import org.dreipic.util.DigestUtils;
+import org.dreipic.util.Decryptor;
+import org.dreipic.util.OrderedWorkers;
+import org.dreipic.util.StageTimes;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Verify;
@@ -30,20 +28,25 @@ final class ExplorerDownload {
     private static final String DOWNLOAD_TEMP_FILE_NAME = ".dreipic_download.temp";
     private static final String ARCHIVE_TEMP_FILE_NAME = ".dreipic_archive.temp";
 
+    private static final int DOWNLOAD_CONNECTIONS = 4;
+    private static final int PREFETCH_BLOCKS = 16;
+    private static final long PREFETCH_BYTES = 64L << 20;
+    private static final int MAX_BLOCK_ATTEMPTS = 3;
+
     private ExplorerDownload() {
     }
 
     static void download(
             FtpCredentials creds,
             byte[] dataKey,
-            StructMeta meta,
-            StructMetaPath path,
-            StructMetaData data,
+            MetaStore store,
+            int path,
+            int data,
             File dstDir,
             boolean extract,
             LogPanel log)
     {
-        String fileName = pathName(path.path);
+        String fileName = pathName(store.name(store.pathName(path)));
         File dstFile = new File(dstDir, fileName);
         if (dstFile.exists()) {
             log.log("Destination file/dir already exists, doing nothing: [%s]", dstFile);
@@ -54,13 +57,13 @@ final class ExplorerDownload {
         File archiveTempFile = prepareTempFile(dstDir, ARCHIVE_TEMP_FILE_NAME, log);
 
         try {
-            FtpConnector.connect(creds, log, ftp -> {
-                downloadFile(dataKey, meta, data, downloadTempFile, ftp, log);
-            });
+            try (FtpConnector.Pool pool = FtpConnector.connectPool(creds, DOWNLOAD_CONNECTIONS, log)) {
+                downloadFile(dataKey, store, data, downloadTempFile, pool, PREFETCH_BLOCKS, PREFETCH_BYTES, log);
+            }
 
             log.log("File downloaded");
 
-            if (path.type == StructPathType.ARCHIVE && extract) {
+            if (store.pathType(path) == StructPathType.ARCHIVE && extract) {
                 Preconditions.checkState(dstFile.mkdir(), "Failed to create directory: [%s]", dstFile);
                 DreipicExtract.extractFile(downloadTempFile, dstFile, archiveTempFile);
                 log.log("Archive extracted");
@@ -84,56 +87,167 @@ final class ExplorerDownload {
         return tempFile;
     }
 
-    private static void downloadFile(
+    static void downloadFile(
             byte[] dataKey,
-            StructMeta meta,
-            StructMetaData data,
+            MetaStore store,
+            int data,
             File tempFile,
-            FTPClient ftp,
+            FtpConnector.Pool pool,
+            int prefetchBlocks,
+            long prefetchBytes,
             LogPanel log)
     {
-        MessageDigest digest = DigestUtils.newSha256();
-        long ofs = 0;
-
-        try (OutputStream out = new FileOutputStream(tempFile)) {
-            DigestOutputStream digOut = new DigestOutputStream(out, digest);
-
-            log.log("Downloading %,d blocks, %,d bytes", data.blocks.size(), data.size);
-
-            for (int blockIdx = 0; blockIdx < data.blocks.size(); ++blockIdx) {
-                byte[] blockId = DecryptUtils.getBlockId(meta.storageId, data.hash, blockIdx);
-                String blockIdStr = DatatypeConverter.printHexBinary(blockId).toLowerCase();
-                String blockDir = blockIdStr.substring(0, 2);
-                String blockFile = blockIdStr.substring(2);
-                String blockPath = "/data/" + blockDir + "/" + blockFile;
+        byte[] storageId = store.storageId();
+        byte[] hash = store.dataHash(data);
+        long size = store.dataSize(data);
+        int nBlocks = store.dataBlockCount(data);
+
+        List<BlockJob> jobs = new ArrayList<>();
+        long blockOffset = 0;
+        for (int blockIdx = 0; blockIdx < nBlocks; ++blockIdx) {
+            byte[] blockId = DecryptUtils.getBlockId(storageId, hash, blockIdx);
+            String blockIdStr = DatatypeConverter.printHexBinary(blockId).toLowerCase();
+            String blockDir = blockIdStr.substring(0, 2);
+            String blockFile = blockIdStr.substring(2);
+            int b = store.dataBlock(data, blockIdx);
+            long innerSize = store.blockInnerSize(b);
+            jobs.add(new BlockJob(blockIdx, "/data/" + blockDir + "/" + blockFile, blockOffset, innerSize, store.blockInnerHash(b)));
+            blockOffset += innerSize;
+        }
+        Verify.verify(blockOffset == size, "Block sizes %s do not add up to data size %s", blockOffset, size);
+
+        log.log("Downloading %,d blocks, %,d bytes over %d connections", nBlocks, size, pool.size());
+
+        long[] done = new long[1];
+        long startTime = System.nanoTime();
+        StageTimes times = new StageTimes();
+        StageTimes.Stage fetch = times.stage("Fetch", pool.size());
+        StageTimes.Stage decrypt = times.stage("Decrypt", pool.size());
+        StageTimes.Stage write = times.stage("Write", 1);
+
+        // Each fetch worker streams its block from the server through its own decryptor and verifies it; the
+        // writer only gets the payloads, in block order.
+        BlockingQueue<Decryptor> decryptors = new ArrayBlockingQueue<>(pool.size());
+        try (AssemblyWriter out = new AssemblyWriter(tempFile, size)) {
+            for (int i = 0; i < pool.size(); ++i) {
+                decryptors.add(new Decryptor(dataKey));
+            }
 
-                byte[] rawData = FtpConnector.download(ftp, blockPath);
-                byte[] decData = DecryptUtils.decryptData(dataKey, rawData);
+            // Up to prefetchBlocks blocks are fetched ahead of the one being written. Their payloads, counting the one
+            // being written, stay within prefetchBytes, except for a single block larger than that.
+            OrderedWorkers.map("Fetch", pool.size(), prefetchBlocks, job -> job.innerSize, prefetchBytes, jobs, job -> {
+                job.payload = fetchBlock(pool, decryptors, dataKey, job, fetch, decrypt, log);
+                return job;
+            }, job -> {
+                long t = System.nanoTime();
+                out.write(job.offset, job.payload);
+                write.add(System.nanoTime() - t);
+                job.payload = null;
+
+                done[0] += job.innerSize;
+                log.log("Downloaded block %,d / %,d (%,d bytes)", job.blockIdx, nBlocks, done[0]);
+            });
 
-                InputStream in = new ByteArrayInputStream(decData);
-                DataInputStream din = new DataInputStream(in);
-                StructBlockFile struct = new StructBlockFile(din);
+            double seconds = Math.max(1, System.nanoTime() - startTime) / 1e9;
+            log.log("Downloaded %,d bytes in %.1f s (%,.0f KB/s)", size, seconds, size / seconds / 1024);
+            times.report().forEach(line -> log.log("%s", line));
 
-                Verify.verify(struct.blockIdx == blockIdx);
-                Verify.verify(struct.blockOffset == ofs);
-                digOut.write(struct.data);
-                ofs += struct.data.length;
+            byte[] actHashBytes = out.sha256();
+            String actHashStr = DatatypeConverter.printHexBinary(actHashBytes);
+            String hashStr = DatatypeConverter.printHexBinary(hash);
+            Verify.verify(actHashStr.equals(hashStr), "Expected %s was %s", hashStr, actHashStr);
+        } finally {
+            decryptors.forEach(Decryptor::close);
+        }
+    }
 
-                log.log("Downloaded block %,d / %,d (%,d bytes)", blockIdx, data.blocks.size(), ofs);
+    // A block that fails to download, decrypt or verify is fetched again right away. Decryption runs on the
+    // transfer stream, so the time spent waiting on that stream is counted as fetching and the rest as decrypting.
+    private static ByteBuffer fetchBlock(
+            FtpConnector.Pool pool,
+            BlockingQueue<Decryptor> decryptors,
+            byte[] dataKey,
+            BlockJob job,
+            StageTimes.Stage fetch,
+            StageTimes.Stage decrypt,
+            LogPanel log)
+    {
+        Decryptor decryptor = decryptors.remove();
+        try {
+            for (int attempt = 1;; ++attempt) {
+                long startTime = System.nanoTime();
+                long[] decryptTime = new long[1];
+                try {
+                    Decryptor d = decryptor;
+                    MappedBlockFile block = pool.use(ftp -> FtpConnector.retrieve(ftp, job.path, in -> {
+                        long t = System.nanoTime();
+                        StageTimes.TimedInputStream timedIn = new StageTimes.TimedInputStream(in);
+                        try {
+                            return decryptBlock(d, timedIn, job);
+                        } finally {
+                            decryptTime[0] = System.nanoTime() - t - timedIn.nanos();
+                        }
+                    }));
+
+                    long t = System.nanoTime();
+                    block.verify(job.blockIdx, job.offset, job.innerSize, job.innerHash);
+                    decryptTime[0] += System.nanoTime() - t;
+                    return block.payload();
+                } catch (RuntimeException e) {
+                    if (attempt >= MAX_BLOCK_ATTEMPTS) {
+                        throw e;
+                    }
+                    log.log("Block %,d: %s, fetching again (attempt %d)", job.blockIdx, e, attempt + 1);
+
+                    // The decryptor may have stopped in the middle of the block.
+                    decryptor.close();
+                    decryptor = new Decryptor(dataKey);
+                } finally {
+                    fetch.add(System.nanoTime() - startTime - decryptTime[0]);
+                    decrypt.add(decryptTime[0]);
+                }
             }
-            digOut.flush();
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+        } finally {
+            decryptors.add(decryptor);
         }
+    }
 
-        byte[] actHashBytes = digest.digest();
-        String actHashStr = DatatypeConverter.printHexBinary(actHashBytes);
-        String hashStr = DatatypeConverter.printHexBinary(data.hash);
-        Verify.verify(actHashStr.equals(hashStr), "Expected %s was %s", hashStr, actHashStr);
+    private static MappedBlockFile decryptBlock(Decryptor decryptor, InputStream in, BlockJob job) {
+        BlockBuffer buf = new BlockBuffer((int) Math.min(Integer.MAX_VALUE - 1024, job.innerSize + 1024));
+        decryptor.decryptData(in, buf);
+        return MappedBlockFile.parse(buf.toByteBuffer());
     }
 
     private static String pathName(String path) {
         int idx = path.lastIndexOf('/');
         return idx == -1 ? path : path.substring(idx + 1);
     }
+
+    private static final class BlockJob {
+        final int blockIdx;
+        final String path;
+        final long offset;
+        final long innerSize;
+        final byte[] innerHash;
+        ByteBuffer payload;
+
+        BlockJob(int blockIdx, String path, long offset, long innerSize, byte[] innerHash) {
+            this.blockIdx = blockIdx;
+            this.path = path;
+            this.offset = offset;
+            this.innerSize = innerSize;
+            this.innerHash = innerHash;
+        }
+    }
+
+    // Hands out the decrypted block without copying it once more.
+    private static final class BlockBuffer extends ByteArrayOutputStream {
+        BlockBuffer(int size) {
+            super(size);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
 }
@@ -4,43 +4,52 @@ import java.awt.BorderLayout;
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.regex.PatternSyntaxException;
 
+import javax.swing.AbstractListModel;
 import javax.swing.BoxLayout;
 import javax.swing.DefaultListModel;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
-import javax.xml.bind.DatatypeConverter;
 
+import org.dreipic.MetaStore;
+import org.dreipic.PathSearchIndex;
+import org.dreipic.Snapshot;
+import org.dreipic.Snapshots;
+import org.dreipic.VersionIndex;
 import org.dreipic.gui.SwingUtils;
-import org.dreipic.struct.StructMeta;
-import org.dreipic.struct.StructMetaData;
-import org.dreipic.struct.StructMetaPath;
-import org.dreipic.struct.StructPathType;
 
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
 
 final class FilesWindow {
+    private static final String SEARCH_CONTAINS = "Contains";
+    private static final String SEARCH_GLOB = "Glob";
+    private static final String SEARCH_REGEX = "Regex";
+
     private final FtpCredentials creds;
     private final byte[] dataKey;
 
-    private final Multimap<String, StructMetaPath> pathMap;
-    private final Map<String, DataRec> dataMap;
+    private final MetaStore store;
+    private final PathSearchIndex searchIndex;
+    private final Snapshots snapshots;
+    private final VersionIndex versions;
 
+    private final JComboBox<TxWrapper> cmbTx;
+    private final JComboBox<String> cmbSearchMode;
     private final JTextField txtSearch;
-    private final DefaultListModel<String> pathsModel;
+    private final NamesModel pathsModel;
     private final JList<String> lstPaths;
     private final DefaultListModel<PathWrapper> versionsModel;
     private final JList<PathWrapper> lstVersions;
@@ -51,32 +60,36 @@ final class FilesWindow {
 
     private boolean downloading;
 
-    private FilesWindow(FtpCredentials creds, byte[] dataKey, List<StructMeta> metas) {
+    private FilesWindow(FtpCredentials creds, byte[] dataKey, MetaStore store) {
         this.creds = creds;
         this.dataKey = dataKey;
+        this.store = store;
 
-        pathMap = HashMultimap.create();
-        for (StructMeta meta : metas) {
-            for (StructMetaPath path : meta.paths) {
-                if (path.type == StructPathType.FILE || path.type == StructPathType.ARCHIVE) {
-                    pathMap.put(path.path, path);
-                }
+        // Names that were a file or an archive at least once.
+        BitSet files = new BitSet(store.nameCount());
+        for (int p = 0; p < store.pathCount(); ++p) {
+            if (store.isFile(p)) {
+                files.set(store.pathName(p));
             }
         }
-
-        dataMap = new HashMap<>();
-        for (StructMeta meta : metas) {
-            for (StructMetaData data : meta.datas) {
-                String hashStr = DatatypeConverter.printHexBinary(data.hash);
-                dataMap.put(hashStr, new DataRec(meta, data));
-            }
+        searchIndex = PathSearchIndex.build(store, files.stream().toArray());
+        snapshots = new Snapshots(store);
+        versions = VersionIndex.build(store);
+
+        cmbTx = new JComboBox<>();
+        cmbTx.addItem(new TxWrapper(store, -1));
+        for (int t = store.txCount() - 1; t >= 0; --t) {
+            cmbTx.addItem(new TxWrapper(store, t));
         }
 
+        cmbSearchMode = new JComboBox<>(new String[] { SEARCH_CONTAINS, SEARCH_GLOB, SEARCH_REGEX });
         txtSearch = new JTextField();
 
-        pathsModel = new DefaultListModel<>();
+        pathsModel = new NamesModel(store);
 
+        // A fixed cell size, so that the list does not render every path to measure it.
         lstPaths = new JList<>(pathsModel);
+        lstPaths.setPrototypeCellValue(Strings.repeat("x", 120));
 
         versionsModel = new DefaultListModel<>();
         lstVersions = new JList<>(versionsModel);
@@ -106,14 +119,21 @@ final class FilesWindow {
         centerPanel.add(listsPanel, BorderLayout.CENTER);
         centerPanel.add(dlPanel, BorderLayout.SOUTH);
 
+        JPanel searchPanel = new JPanel(new BorderLayout());
+        searchPanel.add(cmbTx, BorderLayout.WEST);
+        searchPanel.add(txtSearch, BorderLayout.CENTER);
+        searchPanel.add(cmbSearchMode, BorderLayout.EAST);
+
         JPanel panel = new JPanel(new BorderLayout());
-        panel.add(txtSearch, BorderLayout.NORTH);
+        panel.add(searchPanel, BorderLayout.NORTH);
         panel.add(centerPanel, BorderLayout.CENTER);
         panel.add(logPanel.getComponent(), BorderLayout.SOUTH);
 
         JFrame frame = SwingUtils.createFrame("Files", false, panel);
         frame.setVisible(true);
 
+        cmbTx.addActionListener(__ -> onSearch());
+        cmbSearchMode.addActionListener(__ -> onSearch());
         txtSearch.addActionListener(__ -> onSearch());
         lstPaths.addListSelectionListener(__ -> onPathSelectionChange());
         lstVersions.addListSelectionListener(__ -> onVersionSelectionChange());
@@ -121,8 +141,8 @@ final class FilesWindow {
         updatePaths();
     }
 
-    static void show(FtpCredentials creds, byte[] dataKey, List<StructMeta> metas) {
-        new FilesWindow(creds, dataKey, metas);
+    static void show(FtpCredentials creds, byte[] dataKey, MetaStore store) {
+        new FilesWindow(creds, dataKey, store);
     }
 
     private void onSearch() {
@@ -142,32 +162,34 @@ final class FilesWindow {
             return;
         }
 
-        List<StructMetaPath> paths = new ArrayList<>(pathMap.get(path));
-        Collections.sort(paths, (p1, p2) -> {
-            long t1 = p1.time == null ? 0 : p1.time;
-            long t2 = p2.time == null ? 0 : p2.time;
-            return -Long.compare(t1, t2);
-        });
-
+        // Newest first; the index keeps the versions of a name in transaction time order.
+        int name = store.findName(path);
         List<PathWrapper> wrappers = new ArrayList<>();
-
-        for (StructMetaPath metaPath : paths) {
-            String hashStr = DatatypeConverter.printHexBinary(metaPath.hash);
-            DataRec dataRec = dataMap.get(hashStr);
-            PathWrapper wrapper = new PathWrapper(dataRec == null ? null : dataRec.meta, metaPath, dataRec == null ? null : dataRec.data);
-            wrappers.add(wrapper);
+        for (int i = versions.versionCount(name) - 1; i >= 0; --i) {
+            int p = versions.version(name, i);
+            if (store.isFile(p)) {
+                wrappers.add(new PathWrapper(store, p, store.pathData(p)));
+            }
         }
 
-        Collections.sort(wrappers);
-        Collections.reverse(wrappers);
-
         for (PathWrapper wrapper : wrappers) {
             versionsModel.addElement(wrapper);
         }
 
-        if (!paths.isEmpty()) {
+        if (!wrappers.isEmpty()) {
             lstVersions.setSelectedIndex(0);
         }
+
+        // Preselect the version the name had as of the chosen transaction.
+        Snapshot snapshot = selectedSnapshot();
+        if (snapshot != null) {
+            int p = snapshot.fileEntry(name);
+            for (int i = 0; i < wrappers.size(); ++i) {
+                if (wrappers.get(i).path == p) {
+                    lstVersions.setSelectedIndex(i);
+                }
+            }
+        }
     }
 
     private void onVersionSelectionChange() {
@@ -199,7 +221,7 @@ final class FilesWindow {
     private void download(PathWrapper wrapper, File dstDir, boolean extract) {
         try {
             logPanel.clear();
-            ExplorerDownload.download(creds, dataKey, wrapper.meta, wrapper.path, wrapper.data, dstDir, extract, logPanel);
+            ExplorerDownload.download(creds, dataKey, store, wrapper.path, wrapper.data, dstDir, extract, logPanel);
         } catch (Throwable e) {
             String s = Throwables.getStackTraceAsString(e);
             logPanel.log("ERROR: %s", s);
@@ -211,23 +233,44 @@ final class FilesWindow {
         }
     }
 
+    private Snapshot selectedSnapshot() {
+        TxWrapper tx = (TxWrapper) cmbTx.getSelectedItem();
+        return tx == null || tx.tx == -1 ? null : snapshots.at(tx.tx);
+    }
+
     private void updatePaths() {
         String search = txtSearch.getText();
+        Snapshot snapshot = selectedSnapshot();
 
-        List<String> allPaths = new ArrayList<>();
-        for (String path : pathMap.keySet()) {
-            if (path.contains(search)) {
-                allPaths.add(path);
+        // Results come sorted by path from the index.
+        int[] names;
+        try {
+            Object mode = cmbSearchMode.getSelectedItem();
+            if (SEARCH_GLOB.equals(mode)) {
+                names = searchIndex.glob(search);
+            } else if (SEARCH_REGEX.equals(mode)) {
+                names = searchIndex.regex(search);
+            } else {
+                names = searchIndex.substring(search);
             }
+        } catch (PatternSyntaxException e) {
+            logPanel.log("Bad pattern: %s", e.getMessage());
+            names = new int[0];
         }
 
-        Collections.sort(allPaths);
-
-        pathsModel.clear();
-        for (String path : allPaths) {
-            pathsModel.addElement(path);
+        if (snapshot != null) {
+            int count = 0;
+            for (int n : names) {
+                if (snapshot.fileEntry(n) != -1) {
+                    names[count++] = n;
+                }
+            }
+            names = Arrays.copyOf(names, count);
         }
 
+        lstPaths.clearSelection();
+        pathsModel.setNames(names);
+
         btnDownload.setEnabled(false);
     }
 
@@ -235,48 +278,88 @@ final class FilesWindow {
         PathWrapper wrapper = lstVersions.getSelectedValue();
         String path = txtDstDir.getText();
         File file = new File(path);
-        btnDownload.setEnabled(!downloading && wrapper != null && wrapper.data != null && file.isDirectory());
+        btnDownload.setEnabled(!downloading && wrapper != null && wrapper.data != -1 && file.isDirectory());
     }
 
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
-            FilesWindow.show(null, null, Collections.emptyList());
+            FilesWindow.show(null, null, MetaStore.builder().build());
         });
     }
 
-    private static final class DataRec {
-        final StructMeta meta;
-        final StructMetaData data;
+    // The list model over an array of names, which only builds the paths that are shown.
+    private static final class NamesModel extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
 
-        DataRec(StructMeta meta, StructMetaData data) {
-            this.meta = meta;
-            this.data = data;
+        private final MetaStore store;
+        private int[] names = new int[0];
+
+        NamesModel(MetaStore store) {
+            this.store = store;
+        }
+
+        void setNames(int[] names) {
+            int oldSize = this.names.length;
+            this.names = names;
+            if (oldSize > 0) {
+                fireIntervalRemoved(this, 0, oldSize - 1);
+            }
+            if (names.length > 0) {
+                fireIntervalAdded(this, 0, names.length - 1);
+            }
+        }
+
+        @Override
+        public int getSize() {
+            return names.length;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return store.name(names[index]);
         }
     }
 
-    private static final class PathWrapper implements Comparable<PathWrapper> {
-        final StructMeta meta;
-        final StructMetaPath path;
-        final StructMetaData data;
+    private static final class TxWrapper {
+        final MetaStore store;
+        final int tx;
 
-        PathWrapper(StructMeta meta, StructMetaPath path, StructMetaData data) {
-            this.meta = meta;
+        TxWrapper(MetaStore store, int tx) {
+            this.store = store;
+            this.tx = tx;
+        }
+
+        @Override
+        public String toString() {
+            if (tx == -1) {
+                return "All transactions";
+            }
+            Date date = new Date(store.txTimestamp(tx));
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(date);
+        }
+    }
+
+    private static final class PathWrapper {
+        final MetaStore store;
+        final int path;
+        final int data;
+
+        PathWrapper(MetaStore store, int path, int data) {
+            this.store = store;
             this.path = path;
             this.data = data;
         }
 
-        @Override
-        public int compareTo(PathWrapper o) {
-            long t1 = meta == null ? 0 : meta.timestamp;
-            long t2 = o.meta == null ? 0 : o.meta.timestamp;
-            return Long.compare(t1, t2);
+        // The time of the transaction that wrote this version.
+        long timestamp() {
+            return store.txTimestamp(store.pathTx(path));
         }
 
         @Override
         public String toString() {
-            Date date = new Date(meta == null ? 0 : meta.timestamp);
-            String sizeStr = data == null ? "<missing>" : String.format("%,d", data.size);
-            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS").format(date) + " " + path.type + " " + sizeStr;
+            Date date = new Date(timestamp());
+            String sizeStr = data == -1 ? "<missing>" : String.format("%,d", store.dataSize(data));
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS").format(date) + " " + store.pathType(path) + " " + sizeStr;
         }
     }
 }
@@ -1,14 +1,22 @@
 package org.dreipic.gui.exp;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
 import org.apache.commons.net.ftp.FTPSClient;
+import org.dreipic.util.OrderedWorkers;
 
 import com.google.common.base.Preconditions;
 
@@ -19,6 +27,24 @@ final class FtpConnector {
     static void connect(FtpCredentials creds, LogPanel log, Consumer<FTPClient> consumer) {
         log.log("Connecting...");
 
+        FTPClient ftp = open(creds);
+        try {
+            log.log("Connected.");
+
+            consumer.accept(ftp);
+        } finally {
+            disconnect(ftp);
+        }
+    }
+
+    static Pool connectPool(FtpCredentials creds, int size, LogPanel log) {
+        log.log("Connecting %d sessions...", size);
+        Pool pool = new Pool(() -> open(creds), size);
+        log.log("Connected.");
+        return pool;
+    }
+
+    static FTPClient open(FtpCredentials creds) {
         try {
             FTPSClient ftp = new FTPSClient();
             ftp.connect(creds.host, creds.port);
@@ -31,13 +57,19 @@ final class FtpConnector {
                 Preconditions.checkState(ftp.login(creds.login, creds.password), "Failed to login");
 
                 ftp.setFileType(FTP.BINARY_FILE_TYPE);
-
-                log.log("Connected.");
-
-                consumer.accept(ftp);
-            } finally {
+            } catch (IOException | RuntimeException e) {
                 ftp.disconnect();
+                throw e;
             }
+            return ftp;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void disconnect(FTPClient ftp) {
+        try {
+            ftp.disconnect();
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -51,15 +83,98 @@ final class FtpConnector {
         }
     }
 
-    static byte[] download(FTPClient ftp, String path) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+    static <T> T retrieve(FTPClient ftp, String path, Function<InputStream, T> fn) {
         try {
-            boolean b = ftp.retrieveFile(path, out);
-            Preconditions.checkState(b, "Failed to retrieve: [%s]", path);
+            T res;
+            try (InputStream in = ftp.retrieveFileStream(path)) {
+                Preconditions.checkState(in != null, "Failed to retrieve: [%s]", path);
+                res = fn.apply(in);
+            }
+            Preconditions.checkState(ftp.completePendingCommand(), "Failed to retrieve: [%s]", path);
+            return res;
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
-        byte[] data = out.toByteArray();
-        return data;
+    }
+
+    // A fixed number of logged-in sessions shared by several threads, each session serving one transfer at a time.
+    // A session whose transfer failed may be left mid-command, so it is dropped and the next user logs in again.
+    static final class Pool implements AutoCloseable {
+        private final Supplier<FTPClient> factory;
+        private final BlockingQueue<Session> idle;
+        private final List<Session> sessions;
+
+        Pool(Supplier<FTPClient> factory, int size) {
+            Preconditions.checkArgument(size > 0, "%s", size);
+            this.factory = factory;
+            idle = new ArrayBlockingQueue<>(size);
+            sessions = new ArrayList<>();
+
+            // Logging in takes several round trips per session, so all of them do it at once.
+            List<Session> opened = Collections.synchronizedList(new ArrayList<>());
+            try {
+                OrderedWorkers.mapAll("FtpLogin", size, Collections.nCopies(size, factory), f -> {
+                    opened.add(new Session(f.get()));
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                opened.forEach(Session::close);
+                throw e;
+            }
+            sessions.addAll(opened);
+            idle.addAll(opened);
+        }
+
+        int size() {
+            return sessions.size();
+        }
+
+        <T> T use(Function<FTPClient, T> fn) {
+            Session session;
+            try {
+                session = idle.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+
+            try {
+                if (session.ftp == null) {
+                    session.ftp = factory.get();
+                }
+                return fn.apply(session.ftp);
+            } catch (RuntimeException e) {
+                session.close();
+                throw e;
+            } finally {
+                idle.add(session);
+            }
+        }
+
+        @Override
+        public void close() {
+            for (Session session : sessions) {
+                session.close();
+            }
+        }
+    }
+
+    private static final class Session {
+        FTPClient ftp;
+
+        Session(FTPClient ftp) {
+            this.ftp = ftp;
+        }
+
+        synchronized void close() {
+            if (ftp != null) {
+                try {
+                    ftp.disconnect();
+                } catch (IOException e) {
+                    // The session is dropped either way.
+                }
+                ftp = null;
+            }
+        }
     }
 }
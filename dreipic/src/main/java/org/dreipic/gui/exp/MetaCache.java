@@ -0,0 +1,249 @@
+package org.dreipic.gui.exp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.dreipic.MetaStore;
+import org.dreipic.struct.MappedMetaFile;
+import org.dreipic.util.Decryptor;
+import org.dreipic.util.DigestUtils;
+
+import com.google.common.base.Verify;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+
+// Metas fetched from a server, kept on disk as they were downloaded, so they are still encrypted. A meta is
+// trusted if its name and size match the server's listing. Next to them is the store made of a prefix of those
+// metas, encrypted with a key derived from the data key, so only newer transactions have to be added on connect.
+final class MetaCache {
+    private static final int SIGN = 0x2D7B44E9;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 12;
+
+    private static final String INDEX_FILE_NAME = "index";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final byte[] INDEX_KEY_PREFIX = "dreipic-explorer-index".getBytes(StandardCharsets.UTF_8);
+
+    private final File metaDir;
+    private final File indexFile;
+    private final SecretKeySpec indexKey;
+
+    MetaCache(File dir, byte[] dataKey) {
+        metaDir = new File(dir, "meta");
+        indexFile = new File(dir, INDEX_FILE_NAME);
+
+        MessageDigest digest = DigestUtils.newSha256();
+        digest.update(INDEX_KEY_PREFIX);
+        digest.update(dataKey);
+        indexKey = new SecretKeySpec(digest.digest(), "AES");
+    }
+
+    // One directory per server account under the user's home.
+    static File defaultDir(FtpCredentials creds) {
+        byte[] id = DigestUtils.sha256(creds.host + ":" + creds.port + ":" + creds.login);
+        String name = BaseEncoding.base16().lowerCase().encode(id, 0, 16);
+        return new File(new File(System.getProperty("user.home"), ".dreipic/explorer"), name);
+    }
+
+    File metaFile(long tx) {
+        return new File(metaDir, Long.toString(tx));
+    }
+
+    boolean hasMeta(long tx, long size) {
+        File file = metaFile(tx);
+        return file.isFile() && file.length() == size;
+    }
+
+    // The meta is streamed to disk as it arrives and kept only if it has exactly the size from the listing.
+    void putMeta(long tx, long size, InputStream in) {
+        writeAtomically(metaFile(tx), out -> {
+            long n = ByteStreams.copy(ByteStreams.limit(in, size + 1), out);
+            Verify.verify(n == size, "Size mismatch: tx %s, %s != %s", tx, n, size);
+        });
+    }
+
+    // Decrypts a cached meta into a scratch file and maps that, so neither form of the meta is copied into the heap.
+    MappedMetaFile loadMeta(long tx, Decryptor decryptor) {
+        File plainFile = new File(metaDir, tx + ".plain");
+        try {
+            MappedMetaFile meta;
+            try (FileChannel in = FileChannel.open(metaFile(tx).toPath(), StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(plainFile.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                decryptor.decryptData(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()), out);
+                meta = MappedMetaFile.parse(out.map(FileChannel.MapMode.READ_ONLY, 0, out.size()));
+            }
+            meta.verifyEnd();
+            return meta;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            // The mapping stays valid after the name is gone; where the file system refuses, it goes on exit.
+            if (!plainFile.delete()) {
+                plainFile.deleteOnExit();
+            }
+        }
+    }
+
+    // Null if there is no index, or it cannot be read with this data key or by this version of the code.
+    Index readIndex() {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+
+        byte[] data;
+        try {
+            data = Files.readAllBytes(indexFile.toPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (data.length < HEADER_SIZE + IV_LENGTH || buf.getInt() != SIGN || buf.getInt() != VERSION
+                || buf.getInt() != MetaStore.FORMAT_VERSION)
+        {
+            return null;
+        }
+
+        byte[] plain;
+        try {
+            Cipher cipher = newCipher(Cipher.DECRYPT_MODE, data, buf.position());
+            plain = cipher.doFinal(data, buf.position() + IV_LENGTH, data.length - buf.position() - IV_LENGTH);
+        } catch (AEADBadTagException e) {
+            return null;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+
+        // An index that authenticates but does not parse is only a cache miss, the store is built again.
+        try {
+            ByteBuffer in = ByteBuffer.wrap(plain);
+            int n = in.getInt();
+            Verify.verify(n >= 0 && n <= in.remaining() / 16, "Bad meta cache index");
+            long[] txs = new long[n];
+            long[] sizes = new long[n];
+            for (int i = 0; i < n; ++i) {
+                txs[i] = in.getLong();
+                sizes[i] = in.getLong();
+            }
+            return new Index(txs, sizes, MetaStore.builder(in));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    void writeIndex(long[] txs, long[] sizes, MetaStore store) {
+        Verify.verify(txs.length == store.txCount() && sizes.length == txs.length);
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(plain);
+            out.writeInt(txs.length);
+            for (int i = 0; i < txs.length; ++i) {
+                Verify.verify(txs[i] == store.txId(i), "Transaction mismatch: %s", txs[i]);
+                out.writeLong(txs[i]);
+                out.writeLong(sizes[i]);
+            }
+            store.write(out);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        writeIndex(plain.toByteArray());
+    }
+
+    void writeIndex(byte[] plain) {
+        byte[] iv = new byte[IV_LENGTH];
+        new SecureRandom().nextBytes(iv);
+
+        ByteBuffer data;
+        try {
+            Cipher cipher = newCipher(Cipher.ENCRYPT_MODE, iv, 0);
+            data = ByteBuffer.allocate(HEADER_SIZE + IV_LENGTH + cipher.getOutputSize(plain.length));
+            data.putInt(SIGN);
+            data.putInt(VERSION);
+            data.putInt(MetaStore.FORMAT_VERSION);
+            data.put(iv);
+            cipher.doFinal(ByteBuffer.wrap(plain), data);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        writeAtomically(indexFile, out -> out.write(data.array()));
+    }
+
+    private Cipher newCipher(int mode, byte[] iv, int ivOffset) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, indexKey, new GCMParameterSpec(TAG_BITS, iv, ivOffset, IV_LENGTH));
+        return cipher;
+    }
+
+    private static void writeAtomically(File file, Writer writer) {
+        File dir = file.getParentFile();
+        File tempFile = new File(dir, file.getName() + ".tmp");
+        try {
+            Files.createDirectories(dir.toPath());
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                writer.write(out);
+                out.getFD().sync();
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            tempFile.delete();
+            throw e;
+        }
+    }
+
+    private interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    static final class Index {
+        final long[] txs;
+        final long[] sizes;
+        final MetaStore.Builder builder;
+
+        Index(long[] txs, long[] sizes, MetaStore.Builder builder) {
+            this.txs = txs;
+            this.sizes = sizes;
+            this.builder = builder;
+        }
+
+        // How many of the server's transactions the index holds, or -1 if it holds anything else.
+        int matchingPrefix(long[] serverTxs, long[] serverSizes) {
+            if (txs.length > serverTxs.length) {
+                return -1;
+            }
+            for (int i = 0; i < txs.length; ++i) {
+                if (txs[i] != serverTxs[i] || sizes[i] != serverSizes[i]) {
+                    return -1;
+                }
+            }
+            return txs.length;
+        }
+    }
+}
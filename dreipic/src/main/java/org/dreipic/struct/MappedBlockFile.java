@@ -0,0 +1,99 @@
+package org.dreipic.struct;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.dreipic.util.DecryptUtils;
+import org.dreipic.util.Decryptor;
+import org.dreipic.util.DigestUtils;
+
+import com.google.common.base.Verify;
+
+public final class MappedBlockFile {
+    public final StructBlockHeader header;
+    private final ByteBuffer payload;
+
+    private MappedBlockFile(StructBlockHeader header, ByteBuffer payload) {
+        this.header = header;
+        this.payload = payload;
+    }
+
+    public ByteBuffer payload() {
+        return payload.duplicate();
+    }
+
+    public void verify(int blockIdx, long blockOffset, long innerSize, byte[] innerHash) {
+        Verify.verify(header.blockIdx == blockIdx, "Block %s: wrong index %s", blockIdx, header.blockIdx);
+        Verify.verify(header.blockOffset == blockOffset,
+                "Block %s: offset %s, expected %s", blockIdx, header.blockOffset, blockOffset);
+        Verify.verify(header.dataLen == innerSize, "Block %s: size %s, expected %s", blockIdx, header.dataLen, innerSize);
+
+        MessageDigest digest = DigestUtils.newSha256();
+        digest.update(payload());
+        Verify.verify(Arrays.equals(digest.digest(), innerHash), "Block %s: hash mismatch", blockIdx);
+    }
+
+    public static MappedBlockFile parse(ByteBuffer buf) {
+        StructBlockHeader header = new StructBlockHeader(buf);
+        Verify.verify(buf.remaining() == header.dataLen, "Wrong block length: %s", buf.remaining());
+        return new MappedBlockFile(header, buf.slice().asReadOnlyBuffer());
+    }
+
+    public static MappedBlockFile map(File file, boolean load) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            Verify.verify(size <= Integer.MAX_VALUE, "Block too large: %s", file);
+
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (load) {
+                buf.load();
+            }
+            Verify.verify(buf.getInt() == DecryptUtils.DECRYPT_SIGN, "Not decrypted: %s", file);
+            StructBlockHeader header = new StructBlockHeader(buf);
+            Verify.verify(buf.remaining() == header.dataLen, "Wrong block length: %s", file);
+
+            ByteBuffer payload = buf.slice().asReadOnlyBuffer();
+            return new MappedBlockFile(header, payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static MappedBlockFile load(File file, Decryptor decryptor) {
+        if (isDecrypted(file)) {
+            return map(file, true);
+        }
+
+        try (InputStream in = decryptor.openData(new FileInputStream(file))) {
+            DataInputStream dataIn = new DataInputStream(in);
+            StructBlockHeader header = new StructBlockHeader(dataIn);
+
+            byte[] data = new byte[header.dataLen];
+            dataIn.readFully(data);
+            Verify.verify(dataIn.read() == -1, "Wrong block length: %s", file);
+
+            ByteBuffer payload = ByteBuffer.wrap(data).asReadOnlyBuffer();
+            return new MappedBlockFile(header, payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean isDecrypted(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == DecryptUtils.DECRYPT_SIGN;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
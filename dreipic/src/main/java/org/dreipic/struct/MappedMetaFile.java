@@ -0,0 +1,291 @@
+package org.dreipic.struct;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import org.dreipic.util.DecryptUtils;
+import org.dreipic.util.Decryptor;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
+import com.google.common.io.ByteStreams;
+
+// Reads the same format as StructMeta, but walks the entries in place: nothing is copied or decoded until asked for.
+public final class MappedMetaFile {
+    private static final int SIGN = 0xB5624A23;
+
+    private static final int HEADER_SIZE = 4 + 32 + 8 + 8 + 4;
+    private static final int BLOCK_INFO_SIZE = 8 + 32 + 8 + 32;
+
+    private final ByteBuffer buf;
+    private final int base;
+
+    public final long timestamp;
+    public final long prevTimestamp;
+    public final int entryCount;
+
+    private MappedMetaFile(ByteBuffer buf) {
+        this.buf = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+        base = buf.position();
+
+        Verify.verify(buf.remaining() >= HEADER_SIZE, "Meta truncated");
+        Verify.verify(this.buf.getInt(base) == SIGN);
+        timestamp = this.buf.getLong(base + 36);
+        prevTimestamp = this.buf.getLong(base + 44);
+        entryCount = this.buf.getInt(base + 52);
+        Verify.verify(entryCount >= 0, "%s", entryCount);
+    }
+
+    public static MappedMetaFile parse(ByteBuffer buf) {
+        return new MappedMetaFile(buf);
+    }
+
+    public static MappedMetaFile map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            Verify.verify(size <= Integer.MAX_VALUE, "Meta too large: %s", file);
+
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            Verify.verify(buf.getInt() == DecryptUtils.DECRYPT_SIGN, "Not decrypted: %s", file);
+            return new MappedMetaFile(buf);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Decrypted metas are mapped, encrypted ones are decrypted into the heap.
+    public static MappedMetaFile load(File file, Decryptor decryptor) {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] sign = new byte[4];
+            ByteStreams.readFully(in, sign);
+            if (ByteBuffer.wrap(sign).getInt() == DecryptUtils.DECRYPT_SIGN) {
+                return map(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        try (InputStream in = decryptor.openData(new FileInputStream(file))) {
+            return new MappedMetaFile(ByteBuffer.wrap(ByteStreams.toByteArray(in)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public ByteBuffer storageId() {
+        return slice(buf, base + 4, 32);
+    }
+
+    public void getStorageId(byte[] dst) {
+        get(buf, base + 4, dst);
+    }
+
+    public Entry entries() {
+        return new Entry(buf, base + HEADER_SIZE, entryCount);
+    }
+
+    // One entry object is reused for the whole walk; the visitor must not keep it.
+    public void accept(Visitor visitor) {
+        Entry entry = entries();
+        while (entry.next()) {
+            if (entry.isData()) {
+                visitor.data(entry);
+            } else {
+                visitor.path(entry);
+            }
+        }
+    }
+
+    public void verifyEnd() {
+        Entry entry = entries();
+        while (entry.next()) {
+            // Just skipping.
+        }
+        Verify.verify(entry.next == buf.limit(), "Trailing data");
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int pos, int len) {
+        ByteBuffer res = buf.duplicate();
+        res.limit(pos + len);
+        res.position(pos);
+        return res.slice().asReadOnlyBuffer();
+    }
+
+    private static void get(ByteBuffer buf, int pos, byte[] dst) {
+        Preconditions.checkArgument(dst.length == 32, "%s", dst.length);
+        for (int i = 0; i < 32; ++i) {
+            dst[i] = buf.get(pos + i);
+        }
+    }
+
+    public interface Visitor {
+        default void data(Entry entry) {
+        }
+
+        default void path(Entry entry) {
+        }
+    }
+
+    public static final class Entry {
+        private static final int DATA = 0;
+        private static final int FILE = 1;
+        private static final int PATH = 2;
+
+        private final ByteBuffer buf;
+        private int remaining;
+        private int next;
+
+        private int kind = -1;
+        private int pos;
+        private int blockCount;
+        private int pathLen;
+        private StructPathType type;
+
+        private Entry(ByteBuffer buf, int pos, int count) {
+            this.buf = buf;
+            next = pos;
+            remaining = count;
+        }
+
+        public boolean next() {
+            if (remaining == 0) {
+                kind = -1;
+                return false;
+            }
+            --remaining;
+
+            checkAvailable(next, 1);
+            kind = buf.get(next);
+            pos = next + 1;
+
+            long len;
+            switch (kind) {
+            case DATA:
+                checkAvailable(pos, 44);
+                blockCount = buf.getInt(pos + 40);
+                Verify.verify(blockCount >= 0, "%s", blockCount);
+                len = 44 + (long) blockCount * BLOCK_INFO_SIZE;
+                break;
+            case FILE:
+            case PATH:
+                checkAvailable(pos, 4);
+                pathLen = buf.getInt(pos);
+                Verify.verify(pathLen >= 0, "%s", pathLen);
+                checkAvailable(pos + 4, (long) pathLen + 4);
+                type = pathType(kind, buf.getInt(pos + 4 + pathLen));
+                len = 4 + pathLen + 4 + (kind == FILE ? 32 + 8 : 0);
+                break;
+            default:
+                throw new IllegalStateException("" + kind);
+            }
+
+            checkAvailable(pos, len);
+            next = (int) (pos + len);
+            return true;
+        }
+
+        public boolean isData() {
+            Preconditions.checkState(kind != -1);
+            return kind == DATA;
+        }
+
+        public long size() {
+            checkKind(kind == DATA);
+            return buf.getLong(pos);
+        }
+
+        public ByteBuffer hash() {
+            return slice(buf, hashPos(), 32);
+        }
+
+        public void getHash(byte[] dst) {
+            get(buf, hashPos(), dst);
+        }
+
+        public int blockCount() {
+            checkKind(kind == DATA);
+            return blockCount;
+        }
+
+        public long blockInnerSize(int i) {
+            return buf.getLong(blockPos(i));
+        }
+
+        public ByteBuffer blockInnerHash(int i) {
+            return slice(buf, blockPos(i) + 8, 32);
+        }
+
+        public void getBlockInnerHash(int i, byte[] dst) {
+            get(buf, blockPos(i) + 8, dst);
+        }
+
+        public long blockOuterSize(int i) {
+            return buf.getLong(blockPos(i) + 40);
+        }
+
+        public ByteBuffer blockOuterHash(int i) {
+            return slice(buf, blockPos(i) + 48, 32);
+        }
+
+        public StructPathType type() {
+            checkKind(kind != DATA);
+            return type;
+        }
+
+        public ByteBuffer pathBytes() {
+            checkKind(kind != DATA);
+            return slice(buf, pos + 4, pathLen);
+        }
+
+        public String path() {
+            return StandardCharsets.UTF_8.decode(pathBytes()).toString();
+        }
+
+        // Zero when the file has no time, like a null StructMetaPath.time.
+        public long time() {
+            checkKind(kind == FILE);
+            return buf.getLong(pos + 4 + pathLen + 4 + 32);
+        }
+
+        private int hashPos() {
+            if (kind == DATA) {
+                return pos + 8;
+            }
+            checkKind(kind == FILE);
+            return pos + 4 + pathLen + 4;
+        }
+
+        private int blockPos(int i) {
+            checkKind(kind == DATA);
+            Preconditions.checkElementIndex(i, blockCount);
+            return pos + 44 + i * BLOCK_INFO_SIZE;
+        }
+
+        private void checkAvailable(int at, long len) {
+            Verify.verify(at + len <= buf.limit(), "Meta truncated");
+        }
+
+        private static void checkKind(boolean ok) {
+            Preconditions.checkState(ok, "Not available for this kind of entry");
+        }
+
+        private static StructPathType pathType(int kind, int typeVal) {
+            switch (typeVal) {
+            case 0:
+                return kind == FILE ? StructPathType.FILE : StructPathType.DELETED;
+            case 1:
+                return kind == FILE ? StructPathType.ARCHIVE : StructPathType.DIRECTORY;
+            default:
+                throw new IllegalStateException("" + typeVal);
+            }
+        }
+    }
+}
@@ -3,11 +3,7 @@ package org.dreipic.struct;
 import java.io.DataInputStream;
 import java.io.IOException;
 
-import com.google.common.base.Verify;
-
 public final class StructBlockFile {
-    private static final int SIGN = 0xF8D57165;
-
     public final byte[] storageId;
     public final long transaction;
     public final int blockIdx;
@@ -15,17 +11,13 @@ public final class StructBlockFile {
     public final byte[] data;
 
     public StructBlockFile(DataInputStream in) throws IOException {
-        Verify.verify(in.readInt() == SIGN);
-
-        storageId = new byte[32];
-        in.readFully(storageId);
-
-        transaction = in.readLong();
-        blockIdx = in.readInt();
-        blockOffset = in.readLong();
-        int dataLen = in.readInt();
+        StructBlockHeader header = new StructBlockHeader(in);
+        storageId = header.storageId;
+        transaction = header.transaction;
+        blockIdx = header.blockIdx;
+        blockOffset = header.blockOffset;
 
-        data = new byte[dataLen];
+        data = new byte[header.dataLen];
         in.readFully(data);
     }
 }
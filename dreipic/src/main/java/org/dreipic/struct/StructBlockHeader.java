@@ -0,0 +1,43 @@
+package org.dreipic.struct;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Verify;
+
+public final class StructBlockHeader {
+    private static final int SIGN = 0xF8D57165;
+
+    public final byte[] storageId;
+    public final long transaction;
+    public final int blockIdx;
+    public final long blockOffset;
+    public final int dataLen;
+
+    public StructBlockHeader(DataInputStream in) throws IOException {
+        Verify.verify(in.readInt() == SIGN);
+
+        storageId = new byte[32];
+        in.readFully(storageId);
+
+        transaction = in.readLong();
+        blockIdx = in.readInt();
+        blockOffset = in.readLong();
+        dataLen = in.readInt();
+        Verify.verify(dataLen >= 0, "%s", dataLen);
+    }
+
+    public StructBlockHeader(ByteBuffer buf) {
+        Verify.verify(buf.getInt() == SIGN);
+
+        storageId = new byte[32];
+        buf.get(storageId);
+
+        transaction = buf.getLong();
+        blockIdx = buf.getInt();
+        blockOffset = buf.getLong();
+        dataLen = buf.getInt();
+        Verify.verify(dataLen >= 0, "%s", dataLen);
+    }
+}
@@ -0,0 +1,134 @@
+package org.dreipic.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
+
+// Blocks of a data may arrive in any order and from several threads; each one is written at its own offset.
+public final class AssemblyWriter implements AutoCloseable {
+    private static final int HASH_CHUNK = 1 << 20;
+
+    private final File file;
+    private final long size;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    // Written ranges, merged: start -> end. Blocks written twice must not make up for a gap.
+    private final TreeMap<Long, Long> ranges;
+    private long covered;
+
+    public AssemblyWriter(File file, long size) {
+        Preconditions.checkNotNull(file);
+        Preconditions.checkArgument(size >= 0, "%s", size);
+        this.file = file;
+        this.size = size;
+
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        channel = raf.getChannel();
+        ranges = new TreeMap<>();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void write(long offset, ByteBuffer data) {
+        int len = data.remaining();
+        Preconditions.checkArgument(offset >= 0 && offset + len <= size,
+                "Block [%s, +%s) outside of data size %s: %s", offset, len, size, file);
+
+        try {
+            long pos = offset;
+            while (data.hasRemaining()) {
+                pos += channel.write(data, pos);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        markWritten(offset, offset + len);
+    }
+
+    private synchronized void markWritten(long from, long to) {
+        if (from == to) {
+            return;
+        }
+        Map.Entry<Long, Long> prev = ranges.floorEntry(from);
+        if (prev != null && prev.getValue() >= from) {
+            from = prev.getKey();
+            to = Math.max(to, prev.getValue());
+            covered -= prev.getValue() - prev.getKey();
+            ranges.remove(prev.getKey());
+        }
+        for (Map.Entry<Long, Long> next; (next = ranges.ceilingEntry(from)) != null && next.getKey() <= to;) {
+            to = Math.max(to, next.getValue());
+            covered -= next.getValue() - next.getKey();
+            ranges.remove(next.getKey());
+        }
+        ranges.put(from, to);
+        covered += to - from;
+    }
+
+    public synchronized boolean isComplete() {
+        return covered == size;
+    }
+
+    public byte[] sha256() {
+        Verify.verify(isComplete(), "Incomplete data: %s of %s bytes written: %s", coveredBytes(), size, file);
+
+        MessageDigest digest = DigestUtils.newSha256();
+        ByteBuffer buf = ByteBuffer.allocate(HASH_CHUNK);
+        try {
+            long pos = 0;
+            while (pos < size) {
+                buf.clear();
+                int n = channel.read(buf, pos);
+                Verify.verify(n > 0, "Unexpected end of file: %s", file);
+                buf.flip();
+                digest.update(buf);
+                pos += n;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return digest.digest();
+    }
+
+    private synchronized long coveredBytes() {
+        return covered;
+    }
+
+    public void sync() {
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
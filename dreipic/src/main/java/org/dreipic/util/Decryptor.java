@@ -0,0 +1,429 @@
+package org.dreipic.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+
+public final class Decryptor implements AutoCloseable {
+    private static final byte[] ENCRYPTION_PREFIX = { 51, 53, 57 };
+    private static final byte[] ENCRYPTION_SUFFIX = { 97, 101, 113 };
+
+    private static final int CHUNK = 256 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final MessageDigest keyDigest;
+    private final MessageDigest digest;
+    private final Cipher cipher;
+    private final Inflater inflater;
+    private final HashTrailer trailer;
+
+    private final byte[] salt;
+    private final byte[] check;
+    private final byte[] inArray;
+    private final ByteBuffer inBuf;
+    private final ByteBuffer cipBuf;
+    private final byte[] outArray;
+    private final ByteBuffer outBuf;
+
+    private ChunkSource source;
+    private int checkLen;
+    private boolean cipherDone;
+    private boolean dataDone;
+
+    public Decryptor(byte[] key) {
+        Preconditions.checkNotNull(key);
+
+        keyDigest = DigestUtils.newSha256();
+        keyDigest.update(ENCRYPTION_PREFIX);
+        keyDigest.update(key);
+        keyDigest.update(ENCRYPTION_SUFFIX);
+
+        digest = DigestUtils.newSha256();
+
+        try {
+            cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        Verify.verify(cipher.getBlockSize() == 16);
+
+        inflater = new Inflater(true);
+        trailer = new HashTrailer();
+
+        salt = new byte[32];
+        check = new byte[20];
+        inArray = new byte[CHUNK];
+        inBuf = ByteBuffer.wrap(inArray);
+        cipBuf = ByteBuffer.allocate(CHUNK + 2 * cipher.getBlockSize());
+        outArray = new byte[CHUNK];
+        outBuf = ByteBuffer.wrap(outArray);
+    }
+
+    public boolean decryptFile(InputStream in, OutputStream out) {
+        Preconditions.checkNotNull(in);
+        Preconditions.checkNotNull(out);
+
+        try {
+            DataInputStream dataIn = new DataInputStream(in);
+            int sign = dataIn.readInt();
+            if (sign == DecryptUtils.DECRYPT_SIGN) {
+                return false;
+            }
+
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(DecryptUtils.DECRYPT_SIGN);
+            dataOut.writeInt(sign);
+
+            beginStream(in);
+            copyTo(out);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public byte[] decryptData(byte[] inData) {
+        Preconditions.checkNotNull(inData);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        decryptData(ByteBuffer.wrap(inData), out);
+        return out.toByteArray();
+    }
+
+    public void decryptData(InputStream in, OutputStream out) {
+        Preconditions.checkNotNull(in);
+        Preconditions.checkNotNull(out);
+
+        try {
+            DataInputStream dataIn = new DataInputStream(in);
+            int sign = dataIn.readInt();
+
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(sign);
+
+            beginStream(in);
+            copyTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void decryptData(InputStream in, WritableByteChannel out) {
+        Preconditions.checkNotNull(in);
+        Preconditions.checkNotNull(out);
+
+        try {
+            DataInputStream dataIn = new DataInputStream(in);
+            writeSign(dataIn.readInt(), out);
+
+            beginStream(in);
+            copyTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void decryptData(ByteBuffer in, WritableByteChannel out) {
+        Preconditions.checkNotNull(in);
+        Preconditions.checkNotNull(out);
+
+        try {
+            writeSign(in.getInt(), out);
+
+            beginBuffer(in);
+            copyTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void decryptData(ByteBuffer in, ByteBuffer out) {
+        Preconditions.checkNotNull(in);
+        Preconditions.checkNotNull(out);
+
+        try {
+            out.putInt(in.getInt());
+
+            beginBuffer(in);
+            for (;;) {
+                int n = read(outArray, 0, outArray.length);
+                if (n == -1) {
+                    break;
+                }
+                out.put(outArray, 0, n);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void decryptData(ByteBuffer in, OutputStream out) {
+        try {
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(in.getInt());
+
+            beginBuffer(in);
+            copyTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public InputStream openData(InputStream in) {
+        Preconditions.checkNotNull(in);
+
+        try {
+            byte[] sign = new byte[4];
+            ByteStreams.readFully(in, sign);
+            return openDataSub(in, sign);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public InputStream openFile(InputStream in) {
+        Preconditions.checkNotNull(in);
+
+        try {
+            byte[] sign = new byte[4];
+            ByteStreams.readFully(in, sign);
+            if (Ints.fromByteArray(sign) == DecryptUtils.DECRYPT_SIGN) {
+                return in;
+            }
+            return openDataSub(in, sign);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private InputStream openDataSub(InputStream in, byte[] sign) throws IOException {
+        beginStream(in);
+        return new SequenceInputStream(new ByteArrayInputStream(sign), new DataStream(in));
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+    }
+
+    private void beginStream(InputStream in) throws IOException {
+        ByteStreams.readFully(in, salt);
+
+        begin(() -> {
+            int n = ByteStreams.read(in, inArray, 0, inArray.length);
+            if (n == 0) {
+                return null;
+            }
+            inBuf.clear();
+            inBuf.limit(n);
+            return inBuf;
+        });
+    }
+
+    private void beginBuffer(ByteBuffer in) throws IOException {
+        in.get(salt);
+
+        ByteBuffer part = in.duplicate();
+        begin(() -> {
+            if (!in.hasRemaining()) {
+                return null;
+            }
+            int n = Math.min(in.remaining(), CHUNK);
+            part.limit(in.position() + n);
+            part.position(in.position());
+            in.position(in.position() + n);
+            return part;
+        });
+    }
+
+    private void begin(ChunkSource src) throws IOException {
+        MessageDigest saltDigest;
+        try {
+            saltDigest = (MessageDigest) keyDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        saltDigest.update(salt);
+        byte[] encKey = saltDigest.digest();
+
+        digest.update(encKey);
+        digest.update(salt);
+        byte[] iv = digest.digest();
+        digest.update(iv);
+        iv = digest.digest();
+        digest.update(iv);
+        iv = digest.digest();
+
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(encKey, "AES"), new IvParameterSpec(iv, 0, 16));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+
+        inflater.reset();
+        trailer.reset();
+        source = src;
+        checkLen = 0;
+        cipherDone = false;
+        dataDone = false;
+
+        while (checkLen < check.length) {
+            Verify.verify(fill(), "Data too short");
+        }
+
+        digest.update(check, 0, 16);
+        byte[] expCheckHash = digest.digest();
+        Verify.verify(Arrays.equals(Arrays.copyOf(expCheckHash, 4), Arrays.copyOfRange(check, 16, 20)), "Wrong key");
+    }
+
+    private boolean fill() throws IOException {
+        if (cipherDone) {
+            return false;
+        }
+
+        ByteBuffer chunk = source.next();
+
+        cipBuf.clear();
+        try {
+            if (chunk == null) {
+                cipher.doFinal(EMPTY, cipBuf);
+                cipherDone = true;
+            } else {
+                cipher.update(chunk, cipBuf);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        cipBuf.flip();
+
+        if (checkLen < check.length) {
+            int k = Math.min(check.length - checkLen, cipBuf.remaining());
+            cipBuf.get(check, checkLen, k);
+            checkLen += k;
+        }
+
+        if (cipBuf.hasRemaining() && !inflater.finished()) {
+            inflater.setInput(cipBuf.array(), cipBuf.arrayOffset() + cipBuf.position(), cipBuf.remaining());
+        }
+        return true;
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        while (!dataDone) {
+            if (inflater.finished()) {
+                trailer.verify();
+                dataDone = true;
+                break;
+            }
+
+            if (inflater.needsInput()) {
+                Verify.verify(fill(), "Corrupted data");
+                continue;
+            }
+
+            int n;
+            try {
+                n = inflater.inflate(b, off, len);
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+            Verify.verify(!inflater.needsDictionary());
+
+            int outLen = trailer.update(b, off, n);
+            if (outLen > 0) {
+                return outLen;
+            }
+        }
+
+        return -1;
+    }
+
+    private void copyTo(OutputStream out) throws IOException {
+        for (;;) {
+            int n = read(outArray, 0, outArray.length);
+            if (n == -1) {
+                break;
+            }
+            out.write(outArray, 0, n);
+        }
+    }
+
+    private void copyTo(WritableByteChannel out) throws IOException {
+        for (;;) {
+            int n = read(outArray, 0, outArray.length);
+            if (n == -1) {
+                break;
+            }
+            outBuf.clear();
+            outBuf.limit(n);
+            writeFully(out, outBuf);
+        }
+    }
+
+    private static void writeSign(int sign, WritableByteChannel out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        buf.putInt(sign);
+        buf.flip();
+        writeFully(out, buf);
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private interface ChunkSource {
+        ByteBuffer next() throws IOException;
+    }
+
+    private final class DataStream extends InputStream {
+        private final InputStream in;
+
+        DataStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return Decryptor.this.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.dreipic.util;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
+
+// Keys are parts of cryptographic hashes, so their leading bytes serve as the hash code.
+public final class FixedKeyIntMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private final int keyLen;
+
+    private byte[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    public FixedKeyIntMap(int keyLen, int expectedSize) {
+        Preconditions.checkArgument(keyLen >= 4, "%s", keyLen);
+        Preconditions.checkArgument(expectedSize >= 0, "%s", expectedSize);
+        this.keyLen = keyLen;
+
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3L / 4 < expectedSize) {
+            capacity *= 2;
+        }
+        allocate(capacity);
+    }
+
+    public int keyLength() {
+        return keyLen;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(byte[] key) {
+        Preconditions.checkArgument(key.length == keyLen, "%s", key.length);
+        return get(key, 0);
+    }
+
+    public int get(byte[] key, int off) {
+        Preconditions.checkPositionIndexes(off, off + keyLen, key.length);
+        int slot = find(key, off);
+        return slot < 0 ? -1 : values[slot];
+    }
+
+    public boolean containsKey(byte[] key) {
+        return get(key) != -1;
+    }
+
+    public int put(byte[] key, int value) {
+        Preconditions.checkArgument(key.length == keyLen, "%s", key.length);
+        return put(key, 0, value);
+    }
+
+    public int put(byte[] key, int off, int value) {
+        Preconditions.checkArgument(value >= 0, "%s", value);
+        Preconditions.checkPositionIndexes(off, off + keyLen, key.length);
+
+        int slot = find(key, off);
+        if (slot >= 0) {
+            int old = values[slot];
+            values[slot] = value;
+            return old;
+        }
+
+        if ((size + 1) * 4L > values.length * 3L) {
+            grow();
+            slot = find(key, off);
+        }
+
+        slot = -slot - 1;
+        System.arraycopy(key, off, keys, slot * keyLen, keyLen);
+        values[slot] = value;
+        ++size;
+        return -1;
+    }
+
+    public void forEach(EntryConsumer consumer) {
+        for (int slot = 0; slot < values.length; ++slot) {
+            if (values[slot] != -1) {
+                consumer.accept(keys, slot * keyLen, values[slot]);
+            }
+        }
+    }
+
+    // Returns the slot of the key, or (-insertionSlot - 1) if it is absent.
+    private int find(byte[] key, int off) {
+        int slot = hash(key, off) & mask;
+        for (;;) {
+            if (values[slot] == -1) {
+                return -slot - 1;
+            }
+            if (keyEquals(slot, key, off)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(int slot, byte[] key, int off) {
+        int pos = slot * keyLen;
+        for (int i = 0; i < keyLen; ++i) {
+            if (keys[pos + i] != key[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] key, int off) {
+        int h = (key[off] & 0xFF) << 24 | (key[off + 1] & 0xFF) << 16 | (key[off + 2] & 0xFF) << 8 | (key[off + 3] & 0xFF);
+        return h ^ (h >>> 16);
+    }
+
+    private void grow() {
+        byte[] oldKeys = keys;
+        int[] oldValues = values;
+        Verify.verify(oldValues.length <= Integer.MAX_VALUE / 2 / keyLen, "Map too large");
+
+        allocate(oldValues.length * 2);
+        for (int slot = 0; slot < oldValues.length; ++slot) {
+            if (oldValues[slot] != -1) {
+                int newSlot = -find(oldKeys, slot * keyLen) - 1;
+                System.arraycopy(oldKeys, slot * keyLen, keys, newSlot * keyLen, keyLen);
+                values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        Verify.verify(capacity <= Integer.MAX_VALUE / keyLen, "Map too large");
+        keys = new byte[capacity * keyLen];
+        values = new int[capacity];
+        Arrays.fill(values, -1);
+        mask = capacity - 1;
+    }
+
+    public interface EntryConsumer {
+        void accept(byte[] keys, int off, int value);
+    }
+}
@@ -0,0 +1,161 @@
+package org.dreipic.util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
+
+// Interned 32-byte hashes, packed one after another; the id of a hash is its position in the pool.
+public final class HashPool {
+    public static final int HASH_LENGTH = 32;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private byte[] hashes;
+    private int size;
+
+    private int[] table;
+    private int mask;
+
+    public HashPool(int expectedSize) {
+        Preconditions.checkArgument(expectedSize >= 0, "%s", expectedSize);
+        hashes = new byte[Math.max(MIN_CAPACITY, expectedSize) * HASH_LENGTH];
+
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3L / 4 < expectedSize) {
+            capacity *= 2;
+        }
+        allocateTable(capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int find(byte[] hash) {
+        Preconditions.checkArgument(hash.length == HASH_LENGTH, "%s", hash.length);
+        int slot = findSlot(ByteBuffer.wrap(hash));
+        return slot < 0 ? -1 : table[slot];
+    }
+
+    public int intern(byte[] hash) {
+        Preconditions.checkArgument(hash.length == HASH_LENGTH, "%s", hash.length);
+        return intern(ByteBuffer.wrap(hash));
+    }
+
+    // Reads the hash at the buffer's position, without moving it.
+    public int intern(ByteBuffer hash) {
+        Preconditions.checkArgument(hash.remaining() >= HASH_LENGTH, "%s", hash.remaining());
+
+        int slot = findSlot(hash);
+        if (slot >= 0) {
+            return table[slot];
+        }
+
+        if ((size + 1) * 4L > table.length * 3L) {
+            growTable();
+            slot = findSlot(hash);
+        }
+
+        if ((size + 1) * HASH_LENGTH > hashes.length) {
+            Verify.verify(hashes.length <= Integer.MAX_VALUE / 2, "Hash pool too large");
+            hashes = Arrays.copyOf(hashes, Math.max(MIN_CAPACITY * HASH_LENGTH, hashes.length * 2));
+        }
+
+        int id = size++;
+        hash.duplicate().get(hashes, id * HASH_LENGTH, HASH_LENGTH);
+        table[-slot - 1] = id;
+        return id;
+    }
+
+    public byte[] get(int id) {
+        Preconditions.checkElementIndex(id, size);
+        return Arrays.copyOfRange(hashes, id * HASH_LENGTH, id * HASH_LENGTH + HASH_LENGTH);
+    }
+
+    public boolean equals(int id, byte[] hash) {
+        Preconditions.checkElementIndex(id, size);
+        int pos = id * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; ++i) {
+            if (hashes[pos + i] != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void trim() {
+        hashes = Arrays.copyOf(hashes, size * HASH_LENGTH);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        out.write(hashes, 0, size * HASH_LENGTH);
+    }
+
+    // Reads what write() wrote, hashes keep their ids.
+    public static HashPool read(ByteBuffer buf) {
+        int n = buf.getInt();
+        Verify.verify(n >= 0 && n <= buf.remaining() / HASH_LENGTH, "Bad hash count: %s", n);
+        HashPool pool = new HashPool(n);
+        for (int i = 0; i < n; ++i) {
+            Verify.verify(pool.intern(buf) == i, "Duplicate hash");
+            buf.position(buf.position() + HASH_LENGTH);
+        }
+        return pool;
+    }
+
+    // Returns the slot of the hash, or (-insertionSlot - 1) if it is absent.
+    private int findSlot(ByteBuffer hash) {
+        int p = hash.position();
+        int slot = spread(hash.get(p), hash.get(p + 1), hash.get(p + 2), hash.get(p + 3)) & mask;
+        for (;;) {
+            int id = table[slot];
+            if (id == -1) {
+                return -slot - 1;
+            }
+            if (hashEquals(id, hash, p)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean hashEquals(int id, ByteBuffer hash, int p) {
+        int pos = id * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; ++i) {
+            if (hashes[pos + i] != hash.get(p + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Hashes are uniform already, the leading bytes do as a hash code.
+    private static int spread(byte b0, byte b1, byte b2, byte b3) {
+        int h = (b0 & 0xFF) << 24 | (b1 & 0xFF) << 16 | (b2 & 0xFF) << 8 | (b3 & 0xFF);
+        return h ^ (h >>> 16);
+    }
+
+    private void growTable() {
+        Verify.verify(table.length <= Integer.MAX_VALUE / 2, "Hash pool too large");
+        allocateTable(table.length * 2);
+        for (int id = 0; id < size; ++id) {
+            int pos = id * HASH_LENGTH;
+            int slot = spread(hashes[pos], hashes[pos + 1], hashes[pos + 2], hashes[pos + 3]) & mask;
+            while (table[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+    }
+
+    private void allocateTable(int capacity) {
+        table = new int[capacity];
+        Arrays.fill(table, -1);
+        mask = capacity - 1;
+    }
+}
@@ -0,0 +1,65 @@
+package org.dreipic.util;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import com.google.common.base.Verify;
+
+final class HashTrailer {
+    static final int TRAILER_LEN = 8;
+
+    private final MessageDigest digest;
+
+    private byte[] held;
+    private byte[] spare;
+    private int heldLen;
+
+    HashTrailer() {
+        digest = DigestUtils.newSha256();
+        held = new byte[TRAILER_LEN];
+        spare = new byte[TRAILER_LEN];
+    }
+
+    int update(byte[] b, int off, int n) {
+        int outLen = heldLen + n - TRAILER_LEN;
+        if (outLen <= 0) {
+            System.arraycopy(b, off, held, heldLen, n);
+            heldLen += n;
+            return 0;
+        }
+
+        if (n >= TRAILER_LEN) {
+            System.arraycopy(b, off + n - TRAILER_LEN, spare, 0, TRAILER_LEN);
+        } else {
+            int keep = TRAILER_LEN - n;
+            System.arraycopy(held, heldLen - keep, spare, 0, keep);
+            System.arraycopy(b, off, spare, keep, n);
+        }
+
+        if (outLen >= heldLen) {
+            System.arraycopy(b, off, b, off + heldLen, outLen - heldLen);
+            System.arraycopy(held, 0, b, off, heldLen);
+        } else {
+            System.arraycopy(held, 0, b, off, outLen);
+        }
+
+        byte[] t = held;
+        held = spare;
+        spare = t;
+        heldLen = TRAILER_LEN;
+
+        digest.update(b, off, outLen);
+        return outLen;
+    }
+
+    void reset() {
+        digest.reset();
+        heldLen = 0;
+    }
+
+    void verify() {
+        Verify.verify(heldLen == TRAILER_LEN, "Data too short: %s", heldLen);
+        byte[] actHash = Arrays.copyOf(digest.digest(), TRAILER_LEN);
+        Verify.verify(Arrays.equals(actHash, held), "Data hash mismatch");
+    }
+}
@@ -0,0 +1,165 @@
+package org.dreipic.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+// Applies a function to items on worker threads and hands the results to the calling thread in item order.
+// At most `window` results are ahead of the one the consumer waits for, which bounds the memory they take. When items
+// differ in size, a byte budget bounds the total weight of the items from when they are started until the consumer
+// is done with them. An item heavier than the budget is started once nothing else is, so it does not stall the run.
+public final class OrderedWorkers<T, R> {
+    private final List<T> items;
+    private final Function<T, R> fn;
+    private final int window;
+    private final ToLongFunction<T> weight;
+    private final long budget;
+
+    private final Object[] results;
+    private final boolean[] done;
+    private int next;
+    private int delivered;
+    private long inFlight;
+    private boolean stopped;
+    private Throwable error;
+
+    private OrderedWorkers(List<T> items, Function<T, R> fn, int window, ToLongFunction<T> weight, long budget) {
+        this.items = items;
+        this.fn = fn;
+        this.window = window;
+        this.weight = weight;
+        this.budget = budget;
+        results = new Object[items.size()];
+        done = new boolean[items.size()];
+    }
+
+    public static <T, R> void map(String name, int threads, int window, List<T> items, Function<T, R> fn,
+            Consumer<R> consumer)
+    {
+        map(name, threads, window, item -> 0, Long.MAX_VALUE, items, fn, consumer);
+    }
+
+    public static <T, R> void map(String name, int threads, int window, ToLongFunction<T> weight, long budget,
+            List<T> items, Function<T, R> fn, Consumer<R> consumer)
+    {
+        Preconditions.checkArgument(threads > 0, "%s", threads);
+        Preconditions.checkArgument(window > 0, "%s", window);
+        Preconditions.checkArgument(budget > 0, "%s", budget);
+        new OrderedWorkers<>(items, fn, window, weight, budget)
+                .run(name, Math.min(threads, Math.max(1, items.size())), consumer);
+    }
+
+    public static <T, R> List<R> mapAll(String name, int threads, List<T> items, Function<T, R> fn) {
+        List<R> res = new ArrayList<>(items.size());
+        map(name, threads, Math.max(1, items.size()), items, fn, res::add);
+        return res;
+    }
+
+    private void run(String name, int threads, Consumer<R> consumer) {
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; ++i) {
+            Thread thread = new Thread(this::work);
+            thread.setName(name + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            workers.add(thread);
+        }
+
+        try {
+            for (int i = 0; i < results.length; ++i) {
+                consumer.accept(take(i));
+                release(i);
+            }
+        } finally {
+            synchronized (this) {
+                stopped = true;
+                notifyAll();
+            }
+            try {
+                for (Thread thread : workers) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private synchronized R take(int i) {
+        try {
+            while (!done[i] && error == null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+
+        if (error != null) {
+            Throwables.throwIfUnchecked(error);
+            throw new IllegalStateException(error);
+        }
+
+        @SuppressWarnings("unchecked")
+        R r = (R) results[i];
+        results[i] = null;
+        delivered = i + 1;
+        notifyAll();
+        return r;
+    }
+
+    private synchronized void release(int i) {
+        inFlight -= weight.applyAsLong(items.get(i));
+        notifyAll();
+    }
+
+    private void work() {
+        for (;;) {
+            int idx;
+            synchronized (this) {
+                try {
+                    while (!stopped && error == null && next < results.length && !canStart(next)) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (stopped || error != null || next >= results.length) {
+                    return;
+                }
+                idx = next++;
+                inFlight += weight.applyAsLong(items.get(idx));
+            }
+
+            try {
+                R r = fn.apply(items.get(idx));
+                synchronized (this) {
+                    results[idx] = r;
+                    done[idx] = true;
+                    notifyAll();
+                }
+            } catch (Throwable e) {
+                synchronized (this) {
+                    if (error == null) {
+                        error = e;
+                    }
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean canStart(int idx) {
+        if (idx >= delivered + window) {
+            return false;
+        }
+        return inFlight == 0 || inFlight + weight.applyAsLong(items.get(idx)) <= budget;
+    }
+}
@@ -0,0 +1,136 @@
+package org.dreipic.util;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+// An immutable map of small non-negative int keys to non-negative int values: a 32-way radix tree where every
+// update copies only the nodes on the path to its key, and shares the rest with the map it was made from.
+public final class PersistentIntMap {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private final int shift;
+    private final Object root;
+    private final int size;
+
+    private PersistentIntMap(int shift, Object root, int size) {
+        this.shift = shift;
+        this.root = root;
+        this.size = size;
+    }
+
+    public static PersistentIntMap empty(int keyCount) {
+        Preconditions.checkArgument(keyCount >= 0, "%s", keyCount);
+        int shift = 0;
+        while (shift < 30 && (long) keyCount > 1L << (shift + BITS)) {
+            shift += BITS;
+        }
+        return new PersistentIntMap(shift, null, 0);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int key) {
+        checkKey(key);
+        Object node = root;
+        for (int s = shift; node != null; s -= BITS) {
+            int i = (key >>> s) & MASK;
+            if (s == 0) {
+                return ((int[]) node)[i];
+            }
+            node = ((Object[]) node)[i];
+        }
+        return -1;
+    }
+
+    public PersistentIntMap put(int key, int value) {
+        Preconditions.checkArgument(value >= 0, "%s", value);
+        checkKey(key);
+        int old = get(key);
+        if (old == value) {
+            return this;
+        }
+        return new PersistentIntMap(shift, set(root, shift, key, value), old == -1 ? size + 1 : size);
+    }
+
+    public PersistentIntMap remove(int key) {
+        checkKey(key);
+        if (get(key) == -1) {
+            return this;
+        }
+        return new PersistentIntMap(shift, set(root, shift, key, -1), size - 1);
+    }
+
+    public void forEach(EntryConsumer consumer) {
+        forEach(root, shift, 0, consumer);
+    }
+
+    private void checkKey(int key) {
+        Preconditions.checkArgument(key >= 0 && (shift + BITS >= 31 || key < 1 << (shift + BITS)), "%s", key);
+    }
+
+    // Returns null for a node that ends up empty, so removed subtrees do not linger.
+    private static Object set(Object node, int s, int key, int value) {
+        int i = (key >>> s) & MASK;
+        if (s == 0) {
+            int[] leaf;
+            if (node == null) {
+                leaf = new int[WIDTH];
+                Arrays.fill(leaf, -1);
+            } else {
+                leaf = ((int[]) node).clone();
+            }
+            leaf[i] = value;
+            return value == -1 && isEmpty(leaf) ? null : leaf;
+        }
+
+        Object[] inner = node == null ? new Object[WIDTH] : ((Object[]) node).clone();
+        inner[i] = set(inner[i], s - BITS, key, value);
+        return inner[i] == null && isEmpty(inner) ? null : inner;
+    }
+
+    private static boolean isEmpty(int[] leaf) {
+        for (int v : leaf) {
+            if (v != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isEmpty(Object[] inner) {
+        for (Object child : inner) {
+            if (child != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void forEach(Object node, int s, int base, EntryConsumer consumer) {
+        if (node == null) {
+            return;
+        }
+        if (s == 0) {
+            int[] leaf = (int[]) node;
+            for (int i = 0; i < WIDTH; ++i) {
+                if (leaf[i] != -1) {
+                    consumer.accept(base | i, leaf[i]);
+                }
+            }
+            return;
+        }
+        Object[] inner = (Object[]) node;
+        for (int i = 0; i < WIDTH; ++i) {
+            forEach(inner[i], s - BITS, base | i << s, consumer);
+        }
+    }
+
+    public interface EntryConsumer {
+        void accept(int key, int value);
+    }
+}
@@ -0,0 +1,135 @@
+package org.dreipic.util;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Preconditions;
+
+// Busy time of the stages of a job whose workers each run several stages in a row, like fetch, decrypt and write.
+// Stages fused into one streaming call are told apart by timing the streams: what is not spent reading or writing
+// is spent transforming.
+public final class StageTimes {
+    private final long startTime;
+    private final List<Stage> stages;
+
+    public StageTimes() {
+        startTime = System.nanoTime();
+        stages = new ArrayList<>();
+    }
+
+    public Stage stage(String name, int workers) {
+        Preconditions.checkNotNull(name);
+        Preconditions.checkArgument(workers > 0, "%s", workers);
+        Stage stage = new Stage(name, workers);
+        stages.add(stage);
+        return stage;
+    }
+
+    // One line per stage; utilization is the busy time over the time all the stage's workers had since creation.
+    public List<String> report() {
+        long wallTime = Math.max(1, System.nanoTime() - startTime);
+        List<String> res = new ArrayList<>();
+        for (Stage stage : stages) {
+            long busyTime = stage.busyTime();
+            double utilization = (double) busyTime / wallTime / stage.workers;
+            res.add(String.format("%s: %.1f s busy, %.0f%% of %d workers", stage.name, busyTime / 1e9,
+                    utilization * 100, stage.workers));
+        }
+        return res;
+    }
+
+    public static final class Stage {
+        final String name;
+        final int workers;
+        private final LongAdder busyTime;
+
+        Stage(String name, int workers) {
+            this.name = name;
+            this.workers = workers;
+            busyTime = new LongAdder();
+        }
+
+        public void add(long nanos) {
+            busyTime.add(Math.max(0, nanos));
+        }
+
+        public long busyTime() {
+            return busyTime.sum();
+        }
+    }
+
+    public static final class TimedInputStream extends FilterInputStream {
+        private long nanos;
+
+        public TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        public long nanos() {
+            return nanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long t = System.nanoTime();
+            int res = super.read();
+            nanos += System.nanoTime() - t;
+            return res;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long t = System.nanoTime();
+            int res = in.read(b, off, len);
+            nanos += System.nanoTime() - t;
+            return res;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long t = System.nanoTime();
+            long res = super.skip(n);
+            nanos += System.nanoTime() - t;
+            return res;
+        }
+    }
+
+    public static final class TimedOutputStream extends FilterOutputStream {
+        private long nanos;
+
+        public TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public long nanos() {
+            return nanos;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long t = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - t;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long t = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - t;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long t = System.nanoTime();
+            out.flush();
+            nanos += System.nanoTime() - t;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.dreipic.util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
+
+// Interned UTF-8 strings in one byte array; the id of a string is its position in the arena.
+public final class StringArena {
+    private static final int MIN_CAPACITY = 16;
+
+    private byte[] bytes;
+    private int used;
+
+    private int[] offsets;
+    private int size;
+
+    private int[] table;
+    private int mask;
+
+    public StringArena(int expectedSize) {
+        Preconditions.checkArgument(expectedSize >= 0, "%s", expectedSize);
+        bytes = new byte[Math.max(MIN_CAPACITY, expectedSize) * 32];
+        offsets = new int[Math.max(MIN_CAPACITY, expectedSize) + 1];
+
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3L / 4 < expectedSize) {
+            capacity *= 2;
+        }
+        allocateTable(capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int find(String s) {
+        ByteBuffer utf8 = ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+        int slot = findSlot(utf8, hash(utf8));
+        return slot < 0 ? -1 : table[slot];
+    }
+
+    public int intern(String s) {
+        return intern(ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Takes the bytes between the buffer's position and limit, without moving the position.
+    public int intern(ByteBuffer utf8) {
+        int h = hash(utf8);
+        int slot = findSlot(utf8, h);
+        if (slot >= 0) {
+            return table[slot];
+        }
+
+        if ((size + 1) * 4L > table.length * 3L) {
+            growTable();
+            slot = findSlot(utf8, h);
+        }
+
+        int len = utf8.remaining();
+        if (used + len > bytes.length) {
+            long capacity = Math.max(used + (long) len, bytes.length * 2L);
+            Verify.verify(capacity <= Integer.MAX_VALUE - 8, "String arena too large");
+            bytes = Arrays.copyOf(bytes, (int) capacity);
+        }
+        if (size + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+
+        utf8.duplicate().get(bytes, used, len);
+        used += len;
+
+        int id = size++;
+        offsets[size] = used;
+        table[-slot - 1] = id;
+        return id;
+    }
+
+    public String get(int id) {
+        Preconditions.checkElementIndex(id, size);
+        return new String(bytes, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+    }
+
+    public int length(int id) {
+        Preconditions.checkElementIndex(id, size);
+        return offsets[id + 1] - offsets[id];
+    }
+
+    public byte byteAt(int id, int i) {
+        Preconditions.checkElementIndex(i, length(id));
+        return bytes[offsets[id] + i];
+    }
+
+    public ByteBuffer bytes(int id) {
+        Preconditions.checkElementIndex(id, size);
+        return ByteBuffer.wrap(bytes, offsets[id], offsets[id + 1] - offsets[id]).slice().asReadOnlyBuffer();
+    }
+
+    public void trim() {
+        bytes = Arrays.copyOf(bytes, used);
+        offsets = Arrays.copyOf(offsets, size + 1);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int id = 0; id < size; ++id) {
+            out.writeInt(offsets[id + 1] - offsets[id]);
+        }
+        out.write(bytes, 0, used);
+    }
+
+    // Reads what write() wrote, strings keep their ids.
+    public static StringArena read(ByteBuffer buf) {
+        int n = buf.getInt();
+        Verify.verify(n >= 0 && n <= buf.remaining() / 4, "Bad string count: %s", n);
+        int[] lengths = new int[n];
+        buf.asIntBuffer().get(lengths);
+        buf.position(buf.position() + n * 4);
+
+        StringArena arena = new StringArena(n);
+        ByteBuffer utf8 = buf.duplicate();
+        for (int i = 0; i < n; ++i) {
+            Verify.verify(lengths[i] >= 0 && lengths[i] <= buf.remaining(), "String arena truncated");
+            utf8.limit(buf.position() + lengths[i]);
+            utf8.position(buf.position());
+            Verify.verify(arena.intern(utf8) == i, "Duplicate string");
+            buf.position(buf.position() + lengths[i]);
+        }
+        return arena;
+    }
+
+    // Returns the slot of the string, or (-insertionSlot - 1) if it is absent.
+    private int findSlot(ByteBuffer utf8, int h) {
+        int slot = h & mask;
+        for (;;) {
+            int id = table[slot];
+            if (id == -1) {
+                return -slot - 1;
+            }
+            if (bytesEqual(id, utf8)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean bytesEqual(int id, ByteBuffer utf8) {
+        int pos = offsets[id];
+        int len = offsets[id + 1] - pos;
+        if (len != utf8.remaining()) {
+            return false;
+        }
+        int p = utf8.position();
+        for (int i = 0; i < len; ++i) {
+            if (bytes[pos + i] != utf8.get(p + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(ByteBuffer utf8) {
+        int h = 1;
+        for (int i = utf8.position(); i < utf8.limit(); ++i) {
+            h = 31 * h + utf8.get(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private int hashAt(int id) {
+        int h = 1;
+        for (int i = offsets[id]; i < offsets[id + 1]; ++i) {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private void growTable() {
+        Verify.verify(table.length <= Integer.MAX_VALUE / 2, "String arena too large");
+        allocateTable(table.length * 2);
+        for (int id = 0; id < size; ++id) {
+            int slot = hashAt(id) & mask;
+            while (table[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+    }
+
+    private void allocateTable(int capacity) {
+        table = new int[capacity];
+        Arrays.fill(table, -1);
+        mask = capacity - 1;
+    }
+}
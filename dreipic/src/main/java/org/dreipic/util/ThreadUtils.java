@@ -0,0 +1,33 @@
+package org.dreipic.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+public final class ThreadUtils {
+    private ThreadUtils() {
+    }
+
+    public static void runWorkers(String name, int threads, Runnable worker) {
+        Preconditions.checkArgument(threads > 0, "%s", threads);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; ++i) {
+            Thread thread = new Thread(worker);
+            thread.setName(name + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            workers.add(thread);
+        }
+
+        try {
+            for (Thread thread : workers) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.dreipic;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.dreipic.util.TestEncryptor;
+import org.testng.annotations.Test;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+public class BlockDirScannerTest {
+    @Test
+    public void testScan() throws IOException {
+        Path dir = Files.createTempDirectory("dreipic");
+        try {
+            Map<String, Boolean> exp = new TreeMap<>();
+            for (int i = 0; i < 300; ++i) {
+                byte[] blockId = TestEncryptor.randomBytes(i, 20);
+                boolean sharded = i % 3 != 0;
+                Path path = BlockDirScanner.blockPath(dir, blockId, sharded);
+                Files.createDirectories(path.getParent());
+                Files.write(path, new byte[0]);
+                exp.put(path.toString(), sharded);
+            }
+            Files.write(dir.resolve(".decrypt_journal"), new byte[0]);
+
+            Map<String, Boolean> act = new TreeMap<>();
+            try (Stream<BlockDirScanner.BlockFile> files = BlockDirScanner.scan(dir)) {
+                files.forEach(file -> {
+                    String name = BaseEncoding.base16().lowerCase().encode(file.name);
+                    assertEquals(file.path.getFileName().toString(), name);
+                    if (file.isSharded()) {
+                        assertEquals(BlockDirScanner.blockPath(dir, file.blockId(), true), file.path);
+                    }
+                    synchronized (act) {
+                        act.put(file.path.toString(), file.isSharded());
+                    }
+                });
+            }
+            assertEquals(act, exp);
+        } finally {
+            MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testUnexpectedFile() throws IOException {
+        Path dir = Files.createTempDirectory("dreipic");
+        try {
+            Files.write(dir.resolve("readme.txt"), new byte[0]);
+            try (Stream<BlockDirScanner.BlockFile> files = BlockDirScanner.scan(dir)) {
+                files.count();
+            }
+        } finally {
+            MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+    }
+
+    @Test
+    public void testParseName() {
+        assertNull(BlockDirScanner.parseName("0123"));
+        assertNull(BlockDirScanner.parseName("0123456789ABCDEF0123456789abcdef012345"));
+        assertEquals(BlockDirScanner.parseName("0123456789abcdef0123456789abcdef012345"),
+                BaseEncoding.base16().lowerCase().decode("0123456789abcdef0123456789abcdef012345"));
+    }
+}
@@ -0,0 +1,184 @@
+package org.dreipic;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dreipic.struct.MappedBlockFile;
+import org.dreipic.util.DecryptUtils;
+import org.dreipic.util.Decryptor;
+import org.dreipic.util.DigestUtils;
+import org.dreipic.util.TestEncryptor;
+import org.testng.annotations.Test;
+
+import com.google.common.base.VerifyException;
+import com.google.common.io.BaseEncoding;
+
+public class BlockIndexTest {
+    @Test
+    public void testIncrementalUpdate() throws IOException {
+        try (TestStorage storage = TestStorage.create(null, 1000)) {
+            List<byte[]> hashes = new ArrayList<>();
+            List<byte[]> datas = new ArrayList<>();
+
+            for (int t = 0; t < 3; ++t) {
+                TestStorage.Transaction tx = storage.newTransaction(1000 + t);
+                for (int i = 0; i < 20; ++i) {
+                    byte[] data = TestEncryptor.randomBytes(t * 100 + i, 10 + i * 350);
+                    byte[] hash = tx.addData(data);
+                    tx.addFile("dir" + t + "/file" + i, hash, 0);
+                    hashes.add(hash);
+                    datas.add(data);
+                }
+                tx.commit();
+
+                BlockIndex index = BlockIndex.forMetaDir(storage.metaDir);
+                assertEquals(index.transactions().length, t + 1);
+                assertEquals(index.dataCount(), hashes.size());
+            }
+
+            File indexFile = new File(storage.metaDir, BlockIndex.FILE_NAME);
+            byte[] incremental = Files.readAllBytes(indexFile.toPath());
+            Files.delete(indexFile.toPath());
+            BlockIndex index = BlockIndex.forMetaDir(storage.metaDir);
+            assertEquals(Files.readAllBytes(indexFile.toPath()), incremental);
+
+            for (int k = 0; k < hashes.size(); ++k) {
+                byte[] hash = hashes.get(k);
+                int d = index.findData(hash);
+                assertNotEquals(d, -1);
+                assertEquals(index.dataHash(d), hash);
+                assertEquals(index.dataSize(d), datas.get(k).length);
+                assertEquals(index.dataTransaction(d), 1000 + k / 20);
+
+                int n = index.dataBlockCount(d);
+                assertEquals(n, (datas.get(k).length + 999) / 1000);
+                for (int i = 0; i < n; ++i) {
+                    byte[] blockId = DecryptUtils.getBlockId(storage.storageId, hash, i);
+                    int b = index.dataBlock(d, i);
+                    assertEquals(index.findBlock(blockId), b);
+                    assertEquals(index.blockId(b), blockId);
+                    assertEquals(index.blockDataHash(b), hash);
+                    assertEquals(index.blockIdx(b), i);
+
+                    String name = TestStorage.blockName(blockId);
+                    assertEquals(index.findBlockByName(BaseEncoding.base16().lowerCase().decode(name)), b);
+                    assertEquals(index.blockOuterSize(b), new File(storage.blockDir, name).length());
+                }
+            }
+
+            assertEquals(index.findData(new byte[32]), -1);
+            assertEquals(index.findBlock(new byte[20]), -1);
+        }
+    }
+
+    @Test
+    public void testRebuildUnlessAppended() throws IOException {
+        try (TestStorage storage = TestStorage.create(null, 1000)) {
+            byte[] shared = TestEncryptor.randomBytes(1, 1500);
+            TestStorage.Transaction tx = storage.newTransaction(1000);
+            byte[] replacedHash = tx.addData(TestEncryptor.randomBytes(2, 500));
+            tx.addFile("a", replacedHash, 0).commit();
+            tx = storage.newTransaction(1002);
+            byte[] sharedHash = tx.addData(shared);
+            tx.addFile("b", sharedHash, 0).commit();
+            assertFresh(storage);
+
+            // An older transaction that also lists the data: the data now comes from it.
+            tx = storage.newTransaction(1001);
+            tx.addFile("c", tx.addData(shared), 0).commit();
+            BlockIndex index = assertFresh(storage);
+            assertEquals(index.dataTransaction(index.findData(sharedHash)), 1001);
+
+            // A rewritten meta: its old datas are gone.
+            tx = storage.newTransaction(1000);
+            tx.addFile("d", tx.addData(TestEncryptor.randomBytes(3, 2500)), 0).commit();
+            index = assertFresh(storage);
+            assertEquals(index.findData(replacedHash), -1);
+            assertEquals(index.dataCount(), 2);
+
+            // A removed meta.
+            Files.delete(new File(storage.metaDir, "1001").toPath());
+            index = assertFresh(storage);
+            assertEquals(index.dataTransaction(index.findData(sharedHash)), 1002);
+
+            // A plain append is merged in.
+            tx = storage.newTransaction(1003);
+            tx.addFile("e", tx.addData(TestEncryptor.randomBytes(4, 100)), 0).commit();
+            index = assertFresh(storage);
+            assertEquals(index.transactions(), new long[] { 1000, 1002, 1003 });
+            assertEquals(index.dataCount(), 3);
+        }
+    }
+
+    // Brings the index in the meta dir up to date and checks it against a fresh build of the same metas.
+    private static BlockIndex assertFresh(TestStorage storage) throws IOException {
+        BlockIndex index = BlockIndex.forMetaDir(storage.metaDir);
+        File freshFile = new File(storage.root, "fresh");
+        Files.deleteIfExists(freshFile.toPath());
+        BlockIndex.update(freshFile, DreipicListFiles.getMetaFiles(storage.metaDir),
+                file -> DreipicListFiles.mapMeta(file, null));
+        assertEquals(Files.readAllBytes(new File(storage.metaDir, BlockIndex.FILE_NAME).toPath()),
+                Files.readAllBytes(freshFile.toPath()));
+
+        BlockIndex inMemory = BlockIndex.build(DreipicListFiles.getMetaFiles(storage.metaDir),
+                file -> DreipicListFiles.mapMeta(file, null));
+        assertEquals(inMemory.transactions(), index.transactions());
+        assertEquals(inMemory.dataCount(), index.dataCount());
+        assertEquals(inMemory.blockCount(), index.blockCount());
+        return index;
+    }
+
+    @Test
+    public void testEncryptedBlocks() throws IOException {
+        byte[] key = TestEncryptor.newKey(7);
+        try (TestStorage storage = TestStorage.create(key, 1000)) {
+            TestStorage.Transaction tx = storage.newTransaction(1000);
+            byte[] data = TestEncryptor.randomBytes(1, 2500);
+            byte[] hash = tx.addData(data);
+            tx.addFile("file", hash, 0);
+            tx.commit();
+
+            BlockIndex index = BlockIndex.forMetaDir(storage.metaDir, key);
+            int d = index.findData(hash);
+            assertEquals(index.dataBlockCount(d), 3);
+
+            try (Decryptor decryptor = new Decryptor(key)) {
+                for (int i = 0; i < 3; ++i) {
+                    int b = index.dataBlock(d, i);
+                    String name = TestStorage.blockName(index.blockId(b));
+                    MappedBlockFile block = MappedBlockFile.load(new File(storage.blockDir, name), decryptor);
+                    assertEquals(block.header.blockIdx, i);
+                    assertEquals(block.header.blockOffset, i * 1000);
+
+                    byte[] exp = Arrays.copyOfRange(data, i * 1000, Math.min(data.length, i * 1000 + 1000));
+                    assertEquals(index.blockInnerSize(b), exp.length);
+                    assertEquals(index.blockInnerHash(b), DigestUtils.sha256(exp));
+                    block.verify(i, i * 1000, index.blockInnerSize(b), index.blockInnerHash(b));
+
+                    ByteBuffer payload = block.payload();
+                    byte[] act = new byte[payload.remaining()];
+                    payload.get(act);
+                    assertEquals(act, exp);
+                }
+
+                String name = TestStorage.blockName(index.blockId(index.dataBlock(d, 0)));
+                MappedBlockFile block = MappedBlockFile.load(new File(storage.blockDir, name), decryptor);
+                try {
+                    block.verify(0, 0, 1000, new byte[32]);
+                    fail();
+                } catch (VerifyException e) {
+                    // expected
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.dreipic;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.dreipic.util.DecryptUtils;
+import org.dreipic.util.TestEncryptor;
+import org.testng.annotations.Test;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+
+public class DecryptEngineTest {
+    private static final int SIGN = 0x0BADCAFE;
+
+    @Test
+    public void testDecryptDir() throws IOException {
+        byte[] key = TestEncryptor.newKey(1);
+        File dir = Files.createTempDirectory("dreipic").toFile();
+        try {
+            File[] files = new File[40];
+            byte[][] datas = new byte[files.length][];
+            for (int i = 0; i < files.length; ++i) {
+                File sub = new File(dir, String.format("%02x", i % 4));
+                sub.mkdirs();
+                files[i] = new File(sub, "block" + i);
+                datas[i] = TestEncryptor.randomBytes(i, 1000 + i * 17);
+                Files.write(files[i].toPath(), TestEncryptor.encrypt(key, SIGN, datas[i]));
+            }
+
+            Files.write(new File(files[0].getParentFile(), "block0.dectmp").toPath(), new byte[10]);
+
+            List<File> failures = new CopyOnWriteArrayList<>();
+            int[] last = new int[2];
+            boolean ok = new DecryptEngine(key, 4).decryptDir(dir, listener(failures, last));
+
+            assertTrue(ok);
+            assertTrue(failures.isEmpty());
+            assertEquals(last[0], files.length);
+            assertEquals(last[1], files.length);
+            assertFalse(new File(files[0].getParentFile(), "block0.dectmp").exists());
+
+            for (int i = 0; i < files.length; ++i) {
+                byte[] exp = Bytes.concat(Ints.toByteArray(DecryptUtils.DECRYPT_SIGN), Ints.toByteArray(SIGN), datas[i]);
+                assertEquals(Files.readAllBytes(files[i].toPath()), exp);
+            }
+
+            ok = new DecryptEngine(key, 4).decryptDir(dir, listener(failures, last));
+            assertTrue(ok);
+            assertEquals(last[1], 0);
+        } finally {
+            MoreFiles.deleteRecursively(dir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+    }
+
+    private static DecryptEngine.Listener listener(List<File> failures, int[] last) {
+        return new DecryptEngine.Listener() {
+            @Override
+            public synchronized void onProgress(int done, int total) {
+                last[0] = Math.max(last[0], done);
+                last[1] = total;
+            }
+
+            @Override
+            public void onFailure(File file, Throwable e) {
+                failures.add(file);
+            }
+
+            @Override
+            public void onFinish(List<String> stageReport) {
+                assertEquals(stageReport.size(), 3);
+                assertTrue(stageReport.get(1).startsWith("Decrypt: "), stageReport.get(1));
+            }
+        };
+    }
+}
@@ -0,0 +1,107 @@
+package org.dreipic;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.dreipic.util.TestEncryptor;
+import org.testng.annotations.Test;
+
+public class DreipicRestoreTest {
+    @Test
+    public void testRestore() throws IOException {
+        try (TestStorage storage = TestStorage.create(null, 1000)) {
+            byte[] data1 = TestEncryptor.randomBytes(1, 2500);
+            byte[] data2 = TestEncryptor.randomBytes(2, 700);
+            byte[] data3 = TestEncryptor.randomBytes(3, 1800);
+
+            TestStorage.Transaction tx1 = storage.newTransaction(1000);
+            byte[] hash1 = tx1.addData(data1);
+            byte[] hash2 = tx1.addData(data2);
+            tx1.addFile("/photos/a.jpg", hash1, 0);
+            tx1.addFile("/photos/copy/a.jpg", hash1, 0);
+            tx1.addFile("/old/b.jpg", hash2, 0);
+            tx1.addFile("/old/sub/c.jpg", hash2, 0);
+            tx1.addDirectory("/old/empty");
+            tx1.addDirectory("/empty");
+            tx1.commit();
+
+            TestStorage.Transaction tx2 = storage.newTransaction(2000);
+            byte[] hash3 = tx2.addData(data3);
+            tx2.addDeleted("/old");
+            tx2.addFile("/photos/b.jpg", hash3, 0);
+            tx2.addFile("/other/a.jpg", hash1, 0);
+            tx2.commit();
+
+            RestorePlan plan = RestorePlan.build(Arrays.asList(
+                    DreipicListFiles.mapMeta(new File(storage.metaDir, "1000"), null),
+                    DreipicListFiles.mapMeta(new File(storage.metaDir, "2000"), null)));
+            assertEquals(plan.fileCount, 4);
+            assertEquals(plan.directories, Arrays.asList("empty"));
+            assertEquals(plan.groups.size(), 2);
+            assertEquals(plan.groups.get(0).paths, Arrays.asList("other/a.jpg", "photos/a.jpg", "photos/copy/a.jpg"));
+
+            File dstDir = new File(storage.root, "dst");
+            assertTrue(dstDir.mkdir());
+            assertTrue(DreipicRestore.restore(storage.metaDir, storage.blockDir, dstDir, null, 2));
+
+            Path root = dstDir.toPath();
+            assertEquals(Files.readAllBytes(root.resolve("photos/a.jpg")), data1);
+            assertEquals(Files.readAllBytes(root.resolve("photos/copy/a.jpg")), data1);
+            assertEquals(Files.readAllBytes(root.resolve("other/a.jpg")), data1);
+            assertEquals(Files.readAllBytes(root.resolve("photos/b.jpg")), data3);
+            assertTrue(Files.isSameFile(root.resolve("photos/a.jpg"), root.resolve("other/a.jpg")));
+            assertTrue(Files.isDirectory(root.resolve("empty")));
+            assertFalse(Files.exists(root.resolve("old")));
+            assertFalse(Files.exists(root.resolve(DreipicRestore.STAGE_DIR_NAME)));
+            assertFalse(Files.exists(root.resolve(BlockIndex.FILE_NAME)));
+
+            // Nothing is left to do on a second run.
+            assertTrue(DreipicRestore.restore(storage.metaDir, storage.blockDir, dstDir, null, 2));
+        }
+    }
+
+    @Test
+    public void testCopiesAndResume() throws IOException {
+        try (TestStorage storage = TestStorage.create(null, 1000)) {
+            byte[] data = TestEncryptor.randomBytes(1, 2500);
+            TestStorage.Transaction tx = storage.newTransaction(1000);
+            byte[] hash = tx.addData(data);
+            tx.addFile("/a", hash, 0).addFile("/b", hash, 0).addFile("/c/d", hash, 0).commit();
+
+            File copyDir = new File(storage.root, "copy");
+            assertTrue(copyDir.mkdir());
+            assertTrue(DreipicRestore.restore(storage.metaDir, storage.blockDir, copyDir, null, 2, false));
+            Path root = copyDir.toPath();
+            for (String name : Arrays.asList("a", "b", "c/d")) {
+                assertEquals(Files.readAllBytes(root.resolve(name)), data);
+            }
+            assertFalse(Files.isSameFile(root.resolve("a"), root.resolve("b")));
+            assertFalse(Files.isSameFile(root.resolve("b"), root.resolve("c/d")));
+
+            // A run that stopped after linking the first target of the group: the staged data is picked up again.
+            File resumeDir = new File(storage.root, "resume");
+            Path stageDir = resumeDir.toPath().resolve(DreipicRestore.STAGE_DIR_NAME);
+            Files.createDirectories(stageDir);
+            Path staged = stageDir.resolve(DatatypeConverter.printHexBinary(hash));
+            Files.write(staged, data);
+            Files.createLink(resumeDir.toPath().resolve("a"), staged);
+
+            assertTrue(DreipicRestore.restore(storage.metaDir, storage.blockDir, resumeDir, null, 2));
+            root = resumeDir.toPath();
+            for (String name : Arrays.asList("a", "b", "c/d")) {
+                assertEquals(Files.readAllBytes(root.resolve(name)), data);
+            }
+            assertTrue(Files.isSameFile(root.resolve("a"), root.resolve("c/d")));
+            assertFalse(Files.exists(stageDir));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.dreipic;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.dreipic.util.DecryptUtils;
+import org.dreipic.util.TestEncryptor;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Strings;
+
+public class DreipicScrubTest {
+    @Test
+    public void testScrub() throws IOException {
+        byte[] key = TestEncryptor.newKey(5);
+        try (TestStorage storage = TestStorage.create(key, 1000)) {
+            TestStorage.Transaction tx = storage.newTransaction(1000);
+            byte[][] hashes = new byte[4][];
+            for (int i = 0; i < hashes.length; ++i) {
+                hashes[i] = tx.addData(TestEncryptor.randomBytes(i, 2500));
+                tx.addFile("file" + i, hashes[i], 0);
+            }
+            tx.commit();
+            storage.newTransaction(1001).addFile("copy", hashes[0], 0).commit();
+
+            DreipicScrub.Summary clean = new DreipicScrub(key, 2).scrub(storage.metaDir, storage.blockDir);
+            assertEquals(clean.metas, 2);
+            assertEquals(clean.blocks, 12);
+            assertEquals(clean.lines.size(), 0);
+
+            // A damaged block fails to decrypt, a block copied over another one has the wrong header.
+            File damaged = block(storage, hashes[1], 0);
+            try (RandomAccessFile raf = new RandomAccessFile(damaged, "rw")) {
+                raf.seek(raf.length() / 2);
+                int b = raf.read();
+                raf.seek(raf.length() / 2);
+                raf.write(b ^ 0x40);
+            }
+            File misplaced = block(storage, hashes[2], 0);
+            Files.copy(block(storage, hashes[2], 1).toPath(), misplaced.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            File missing = block(storage, hashes[3], 2);
+            Files.delete(missing.toPath());
+            File unknown = new File(storage.blockDir, Strings.repeat("00", 19));
+            Files.copy(block(storage, hashes[0], 0).toPath(), unknown.toPath());
+
+            DreipicScrub.Summary summary = new DreipicScrub(key, 2).scrub(storage.metaDir, storage.blockDir);
+            assertEquals(summary.metas, 2);
+            assertEquals(summary.blocks, 12);
+            assertEquals(summary.bad, 3);
+            assertEquals(summary.missing, 1);
+            assertEquals(summary.lines.size(), 4);
+            String report = String.join("\n", summary.lines);
+            assertTrue(report.contains("BAD " + damaged + ": "), report);
+            assertTrue(report.contains("BAD " + misplaced + ": com.google.common.base.VerifyException: Block index 1, expected 0"), report);
+            assertEquals(summary.lines.get(2), "MISSING " + missing.getName() + ": data "
+                    + DatatypeConverter.printHexBinary(hashes[3]) + " block 2");
+            assertEquals(summary.lines.get(3), "UNKNOWN " + unknown);
+        }
+    }
+
+    private static File block(TestStorage storage, byte[] hash, int blockIdx) {
+        return new File(storage.blockDir, TestStorage.blockName(DecryptUtils.getBlockId(storage.storageId, hash, blockIdx)));
+    }
+}
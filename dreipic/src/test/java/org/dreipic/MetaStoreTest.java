@@ -0,0 +1,138 @@
+package org.dreipic;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dreipic.struct.MappedMetaFile;
+import org.dreipic.struct.StructPathType;
+import org.dreipic.util.DigestUtils;
+import org.dreipic.util.TestEncryptor;
+import org.testng.annotations.Test;
+
+public class MetaStoreTest {
+    @Test
+    public void testLoad() throws IOException {
+        try (TestStorage storage = TestStorage.create(null, 1000)) {
+            List<byte[]> datas = new ArrayList<>();
+            List<byte[]> hashes = new ArrayList<>();
+            for (int t = 0; t < 5; ++t) {
+                TestStorage.Transaction tx = storage.newTransaction(1000 + t);
+                for (int i = 0; i < 40; ++i) {
+                    byte[] data = TestEncryptor.randomBytes(t * 100 + i, 10 + i * 70);
+                    datas.add(data);
+                    hashes.add(tx.addData(data));
+                    // Every name gets a new version in every transaction.
+                    tx.addFile("dir" + i % 7 + "/file" + i, hashes.get(hashes.size() - 1), t * 10 + 1);
+                }
+                tx.addDeleted("old" + t);
+                tx.commit();
+            }
+
+            MetaStore.Builder builder = MetaStore.builder();
+            for (int t = 0; t < 5; ++t) {
+                builder.add(1000 + t, DreipicListFiles.mapMeta(new File(storage.metaDir, Long.toString(1000 + t)), null));
+            }
+            MetaStore store = builder.build();
+
+            assertEquals(store.txCount(), 5);
+            assertEquals(store.dataCount(), 200);
+            // The root, 7 directories, 40 files and 5 deleted names.
+            assertEquals(store.nameCount(), 53);
+            assertEquals(store.pathCount(), 205);
+
+            for (int k = 0; k < datas.size(); ++k) {
+                int d = store.findData(hashes.get(k));
+                assertEquals(store.dataHash(d), hashes.get(k));
+                assertEquals(store.dataSize(d), datas.get(k).length);
+                assertEquals(store.txId(store.dataTx(d)), 1000 + k / 40);
+
+                byte[] data = datas.get(k);
+                assertEquals(store.dataBlockCount(d), Math.max(1, (data.length + 999) / 1000));
+                for (int i = 0; i < store.dataBlockCount(d); ++i) {
+                    int b = store.dataBlock(d, i);
+                    byte[] part = Arrays.copyOfRange(data, i * 1000, Math.min(data.length, i * 1000 + 1000));
+                    assertEquals(store.blockInnerSize(b), part.length);
+                    assertEquals(store.blockInnerHash(b), DigestUtils.sha256(part));
+                }
+            }
+
+            int n = store.findName("dir3/file10");
+            assertEquals(store.name(n), "dir3/file10");
+            int versions = 0;
+            for (int p = store.latestPath(n); p != -1; p = store.pathPrevVersion(p)) {
+                int t = 4 - versions++;
+                assertEquals(store.pathType(p), StructPathType.FILE);
+                assertEquals(store.pathTx(p), t);
+                assertEquals(store.pathTime(p), t * 10 + 1);
+                assertEquals(store.dataHash(store.pathData(p)), hashes.get(t * 40 + 10));
+            }
+            assertEquals(versions, 5);
+
+            int deleted = store.latestPath(store.findName("old2"));
+            assertEquals(store.pathType(deleted), StructPathType.DELETED);
+            assertEquals(store.pathHash(deleted), -1);
+            assertEquals(store.pathPrevVersion(deleted), -1);
+            assertEquals(store.findName("missing"), -1);
+        }
+    }
+
+    @Test
+    public void testWriteAndContinue() throws IOException {
+        try (TestStorage storage = TestStorage.create(null, 1000)) {
+            for (int t = 0; t < 3; ++t) {
+                TestStorage.Transaction tx = storage.newTransaction(1000 + t);
+                for (int i = 0; i < 10; ++i) {
+                    byte[] hash = tx.addData(TestEncryptor.randomBytes(t * 100 + i % (t + 2), 500 + i * 300));
+                    tx.addFile("dir" + i % 3 + "/file" + (t + i), hash, t);
+                }
+                tx.addDeleted("dir" + t);
+                tx.commit();
+            }
+
+            MetaStore.Builder builder = MetaStore.builder();
+            for (int t = 0; t < 2; ++t) {
+                builder.add(1000 + t, meta(storage, 1000 + t));
+            }
+            MetaStore part = builder.build();
+
+            MetaStore.Builder continued = MetaStore.builder(ByteBuffer.wrap(write(part)));
+            MetaStore store = continued.add(1002, meta(storage, 1002)).build();
+
+            MetaStore.Builder full = MetaStore.builder();
+            for (int t = 0; t < 3; ++t) {
+                full.add(1000 + t, meta(storage, 1000 + t));
+            }
+            MetaStore exp = full.build();
+
+            // Ids are assigned in the same order either way, so even the written forms match.
+            assertEquals(write(store), write(exp));
+            assertEquals(store.txCount(), 3);
+            assertEquals(store.pathCount(), exp.pathCount());
+            int n = store.findName("dir1/file3");
+            assertEquals(n, exp.findName("dir1/file3"));
+            assertEquals(store.dataHash(store.pathData(store.latestPath(n))), exp.dataHash(exp.pathData(exp.latestPath(n))));
+
+            MetaStore empty = MetaStore.builder(ByteBuffer.wrap(write(MetaStore.builder().build()))).build();
+            assertEquals(empty.txCount(), 0);
+            assertEquals(empty.nameCount(), 1);
+        }
+    }
+
+    private static MappedMetaFile meta(TestStorage storage, long tx) {
+        return DreipicListFiles.mapMeta(new File(storage.metaDir, Long.toString(tx)), null);
+    }
+
+    private static byte[] write(MetaStore store) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.write(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,114 @@
+package org.dreipic;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.testng.annotations.Test;
+
+public class PathSearchIndexTest {
+    private static final String[] SEGMENTS = { "2019", "2020", "Holiday", "IMG_0001.jpg", "IMG_0002.JPG", "déjà vu",
+            "a.b", "a+b", "notes.txt", "x", "a[b", "a&b", "\uD83D\uDE00 smile" };
+
+    @Test
+    public void testAgainstScan() {
+        Random rnd = new Random(1);
+        String[] paths = new String[3000];
+        for (int i = 0; i < paths.length; ++i) {
+            StringBuilder sb = new StringBuilder();
+            for (int k = rnd.nextInt(4); k >= 0; --k) {
+                sb.append(sb.length() == 0 ? "" : "/").append(SEGMENTS[rnd.nextInt(SEGMENTS.length)]);
+            }
+            paths[i] = sb.append('#').append(i).toString();
+        }
+        int[] names = new int[paths.length];
+        Arrays.setAll(names, i -> i * 2 + 1);
+        PathSearchIndex index = PathSearchIndex.build(paths, names);
+
+        // Names come back sorted by their path.
+        int[] all = index.substring("");
+        assertEquals(all.length, paths.length);
+        for (int i = 1; i < all.length; ++i) {
+            assertEquals(path(paths, all[i - 1]).compareTo(path(paths, all[i])) <= 0, true);
+        }
+
+        for (String s : new String[] { "x", "IMG", "IMG_0001", "2019/Holiday", "day/IMG", "jà v", "a.b", "zzz", "g3" }) {
+            assertEquals(index.substring(s), scan(paths, Pattern.compile(Pattern.quote(s)), false), s);
+        }
+
+        for (String glob : new String[] { "*", "**", "2019/*", "2019/**", "*/IMG_000?.jpg*", "**/notes.txt#*", "**a.b*",
+                "[0-9]*", "[!2]**", "2020/Holiday/IMG_0001.jpg#1?", "**a[[&]b#*", "[a[b]**", "[a&&b]**", "[!a&&b]**",
+                "**[]&]b#*", "**\uD83D\uDE00 smile#*" }) {
+            Pattern pattern = Pattern.compile(PathSearchIndex.globToRegex(glob, new ArrayList<>()));
+            assertEquals(index.glob(glob), scan(paths, pattern, true), glob);
+        }
+
+        for (String regex : new String[] { "IMG_000[12]", "^2019/Hol", "Holiday/IMG.*JPG", "a\\+b", "a\\.b/x", "(Holi)?day",
+                "2019|2020", "Hol+iday", "IMG_0{3}1", "(?i)img_0001", "\\d{4}/Holiday", "txt#\\d+$", "no(tes)+\\.txt",
+                "\uD83D\uDE00? smile", "e?\uD83D\uDE00* smile", "\uD83D\uDE00+ smile" }) {
+            assertEquals(index.regex(regex), scan(paths, Pattern.compile(regex), false), regex);
+        }
+    }
+
+    @Test
+    public void testRequiredLiterals() {
+        assertEquals(literals("IMG_000[12]\\.jpg"), Arrays.asList("IMG_000", ".jpg"));
+        assertEquals(literals("ab?cde*f+gh{2}ij"), Arrays.asList("a", "cd", "f", "g", "ij"));
+        assertEquals(literals("(Holi)?day\\d"), Arrays.asList("day"));
+        assertEquals(literals("2019|2020"), Arrays.asList());
+        assertEquals(literals("\\x41bc"), Arrays.asList());
+        assertEquals(literals("a\uD83D\uDE00b"), Arrays.asList("a\uD83D\uDE00b"));
+        assertEquals(literals("ab\uD83D\uDE00?cd"), Arrays.asList("ab", "cd"));
+        assertEquals(literals("ab\uD83D\uDE00*cd\uD83D\uDE00+"), Arrays.asList("ab", "cd\uD83D\uDE00"));
+    }
+
+    @Test
+    public void testGlobSets() {
+        assertTrue(globMatches("[a[b]x", "[x"));
+        assertTrue(globMatches("[a&&b]", "&"));
+        assertTrue(globMatches("[a&&b]", "a"));
+        assertFalse(globMatches("[!a&&b]", "&"));
+        assertTrue(globMatches("[!a&&b]", "c"));
+        assertTrue(globMatches("[^a]", "b"));
+        assertTrue(globMatches("[]a]", "]"));
+        assertTrue(globMatches("[!]a]", "b"));
+        assertFalse(globMatches("[!]a]", "]"));
+        assertTrue(globMatches("[a-c]", "b"));
+        assertFalse(globMatches("[a-c]", "-"));
+        assertTrue(globMatches("[a^]", "^"));
+        assertTrue(globMatches("[a\\]", "\\"));
+        assertTrue(globMatches("[ab", "[ab"));
+    }
+
+    private static boolean globMatches(String glob, String path) {
+        return Pattern.compile(PathSearchIndex.globToRegex(glob, new ArrayList<>())).matcher(path).matches();
+    }
+
+    private static List<String> literals(String regex) {
+        return PathSearchIndex.requiredLiterals(regex).stream().map(b -> new String(b, StandardCharsets.UTF_8))
+                .collect(Collectors.toList());
+    }
+
+    private static String path(String[] paths, int name) {
+        return paths[(name - 1) / 2];
+    }
+
+    private static int[] scan(String[] paths, Pattern pattern, boolean whole) {
+        return IntStream.range(0, paths.length)
+                .filter(i -> whole ? pattern.matcher(paths[i]).matches() : pattern.matcher(paths[i]).find())
+                .boxed()
+                .sorted(Comparator.comparing(i -> paths[i]))
+                .mapToInt(i -> i * 2 + 1)
+                .toArray();
+    }
+}
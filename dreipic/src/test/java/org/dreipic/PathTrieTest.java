@@ -0,0 +1,75 @@
+package org.dreipic;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class PathTrieTest {
+    @Test
+    public void testRoundTrip() {
+        PathTrie trie = new PathTrie();
+        List<String> paths = Arrays.asList("", "a", "/a", "a/", "a//b", "2019/2019-07-Holiday/IMG_0001.jpg", "déjà/vu");
+        int[] nodes = new int[paths.size()];
+        for (int i = 0; i < nodes.length; ++i) {
+            nodes[i] = add(trie, paths.get(i));
+        }
+        for (int i = 0; i < nodes.length; ++i) {
+            assertEquals(trie.path(nodes[i]), paths.get(i));
+            assertEquals(trie.find(paths.get(i)), nodes[i]);
+            assertEquals(add(trie, paths.get(i)), nodes[i]);
+        }
+        assertEquals(trie.find("a/b"), -1);
+        assertEquals(trie.find("2019/2019-07"), -1);
+    }
+
+    @Test
+    public void testSharedPrefixes() {
+        PathTrie trie = new PathTrie();
+        for (int i = 0; i < 1000; ++i) {
+            add(trie, String.format("2019/2019-%02d-Album/IMG_%04d.jpg", i % 12 + 1, i));
+        }
+        // The root, one year, 12 albums and 1000 images.
+        assertEquals(trie.size(), 1 + 1 + 12 + 1000);
+
+        int album = trie.find("2019/2019-03-Album");
+        assertEquals(trie.segment(album), "2019-03-Album");
+        assertEquals(trie.path(trie.parent(album)), "2019");
+
+        List<String> act = new ArrayList<>();
+        trie.forEachDescendant(album, n -> act.add(trie.path(n)));
+        Collections.sort(act);
+
+        List<String> exp = new ArrayList<>();
+        for (int i = 2; i < 1000; i += 12) {
+            exp.add(String.format("2019/2019-03-Album/IMG_%04d.jpg", i));
+        }
+        assertEquals(act, exp);
+
+        int year = trie.find("2019");
+        int count = 0;
+        for (int n = trie.firstChild(year); n != -1; n = trie.nextSibling(n)) {
+            ++count;
+        }
+        assertEquals(count, 12);
+
+        int[] total = new int[1];
+        trie.forEachDescendant(PathTrie.ROOT, n -> ++total[0]);
+        assertEquals(total[0], trie.size() - 1);
+
+        assertTrue(trie.isPrefix(year, trie.find("2019/2019-03-Album/IMG_0002.jpg")));
+        assertFalse(trie.isPrefix(album, year));
+    }
+
+    private static int add(PathTrie trie, String path) {
+        return trie.add(ByteBuffer.wrap(path.getBytes(StandardCharsets.UTF_8)));
+    }
+}
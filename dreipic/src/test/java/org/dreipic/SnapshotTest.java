@@ -0,0 +1,85 @@
+package org.dreipic;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dreipic.struct.StructPathType;
+import org.dreipic.util.TestEncryptor;
+import org.testng.annotations.Test;
+
+public class SnapshotTest {
+    @Test
+    public void testReplay() throws IOException {
+        try (TestStorage storage = TestStorage.create(null, 1000)) {
+            byte[][] hashes = new byte[5][];
+
+            TestStorage.Transaction tx = storage.newTransaction(1000);
+            for (int i = 0; i < hashes.length; ++i) {
+                hashes[i] = tx.addData(TestEncryptor.randomBytes(i, 100 + i));
+            }
+            tx.addFile("a/x", hashes[0], 1).addFile("a/y", hashes[1], 2).addDirectory("b").addFile("c", hashes[2], 3);
+            tx.commit();
+
+            storage.newTransaction(1001).addDeleted("a").addFile("a/z", hashes[3], 4).commit();
+            storage.newTransaction(1002).addFile("c", hashes[4], 5).addDeleted("b").commit();
+            storage.newTransaction(1003).addFile("d/e", hashes[0], 6).commit();
+
+            MetaStore.Builder builder = MetaStore.builder();
+            for (int t = 0; t < 4; ++t) {
+                builder.add(1000 + t, DreipicListFiles.mapMeta(new File(storage.metaDir, Long.toString(1000 + t)), null));
+            }
+            MetaStore store = builder.build();
+            Snapshots snapshots = new Snapshots(store);
+
+            // Jump to the end first, then look back at snapshots made along the way.
+            Snapshot s3 = snapshots.latest();
+            assertEquals(s3.tx(), 3);
+            assertEquals(paths(store, s3), Arrays.asList("a", "a/z", "c", "d", "d/e"));
+            assertEquals(store.pathTime(s3.entry(store.findName("c"))), 5);
+
+            Snapshot s0 = snapshots.at(0);
+            assertEquals(paths(store, s0), Arrays.asList("a", "a/x", "a/y", "b", "c"));
+            assertEquals(s0.size(), 4);
+            assertEquals(store.pathType(s0.entry(store.findName("b"))), StructPathType.DIRECTORY);
+            assertEquals(s0.fileEntry(store.findName("b")), -1);
+            assertEquals(store.pathTime(s0.fileEntry(store.findName("c"))), 3);
+            // "a" has no entry of its own, it only exists through its children.
+            assertEquals(s0.entry(store.findName("a")), -1);
+            assertTrue(s0.exists(store.findName("a")));
+            assertFalse(s0.exists(store.findName("d")));
+
+            Snapshot s1 = snapshots.at(1);
+            assertEquals(paths(store, s1), Arrays.asList("a", "a/z", "b", "c"));
+            assertFalse(s1.exists(store.findName("a/x")));
+
+            Snapshot s2 = snapshots.at(2);
+            assertEquals(paths(store, s2), Arrays.asList("a", "a/z", "c"));
+            assertEquals(s2.size(), 2);
+
+            assertEquals(snapshots.at(-1).size(), 0);
+            assertFalse(snapshots.at(-1).exists(store.findName("a")));
+            assertTrue(snapshots.at(0) == s0);
+        }
+    }
+
+    private static List<String> paths(MetaStore store, Snapshot snapshot) {
+        List<String> result = new ArrayList<>();
+        collect(store, snapshot, PathTrie.ROOT, result);
+        result.sort(null);
+        return result;
+    }
+
+    private static void collect(MetaStore store, Snapshot snapshot, int name, List<String> result) {
+        snapshot.forEachChild(name, n -> {
+            result.add(store.name(n));
+            collect(store, snapshot, n, result);
+        });
+    }
+}
@@ -0,0 +1,177 @@
+package org.dreipic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.dreipic.util.DecryptUtils;
+import org.dreipic.util.DigestUtils;
+import org.dreipic.util.TestEncryptor;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+// A storage in a temp directory, deleted on close.
+public final class TestStorage implements AutoCloseable {
+    static final int META_SIGN = 0xB5624A23;
+    static final int BLOCK_SIGN = 0xF8D57165;
+
+    public final File root;
+    public final File metaDir;
+    public final File blockDir;
+    public final byte[] storageId;
+
+    private final byte[] key;
+    private final int blockSize;
+    private long prevTimestamp;
+
+    private TestStorage(File root, byte[] key, int blockSize) {
+        this.root = root;
+        metaDir = new File(root, "meta");
+        blockDir = new File(root, "data");
+        metaDir.mkdirs();
+        blockDir.mkdirs();
+        storageId = TestEncryptor.randomBytes(root.hashCode(), 32);
+        this.key = key;
+        this.blockSize = blockSize;
+    }
+
+    public static TestStorage create(byte[] key, int blockSize) throws IOException {
+        return new TestStorage(Files.createTempDirectory("dreipic").toFile(), key, blockSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        MoreFiles.deleteRecursively(root.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+    public Transaction newTransaction(long timestamp) {
+        return new Transaction(timestamp);
+    }
+
+    public static String blockName(byte[] blockId) {
+        return DatatypeConverter.printHexBinary(blockId).substring(2).toLowerCase();
+    }
+
+    private void writeFile(File file, int sign, byte[] body) throws IOException {
+        byte[] content;
+        if (key != null) {
+            content = TestEncryptor.encrypt(key, sign, body);
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(DecryptUtils.DECRYPT_SIGN);
+            out.writeInt(sign);
+            out.write(body);
+            content = bytes.toByteArray();
+        }
+        Files.write(file.toPath(), content);
+    }
+
+    public final class Transaction {
+        private final long timestamp;
+        private final ByteArrayOutputStream entries;
+        private final DataOutputStream out;
+        private int count;
+
+        Transaction(long timestamp) {
+            this.timestamp = timestamp;
+            entries = new ByteArrayOutputStream();
+            out = new DataOutputStream(entries);
+        }
+
+        public byte[] addData(byte[] data) {
+            byte[] hash = DigestUtils.sha256(data);
+            int n = Math.max(1, (data.length + blockSize - 1) / blockSize);
+            try {
+                out.writeByte(0);
+                out.writeLong(data.length);
+                out.write(hash);
+                out.writeInt(n);
+                for (int i = 0; i < n; ++i) {
+                    int ofs = i * blockSize;
+                    byte[] part = Arrays.copyOfRange(data, ofs, Math.min(data.length, ofs + blockSize));
+
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    DataOutputStream blockOut = new DataOutputStream(body);
+                    blockOut.write(storageId);
+                    blockOut.writeLong(timestamp);
+                    blockOut.writeInt(i);
+                    blockOut.writeLong(ofs);
+                    blockOut.writeInt(part.length);
+                    blockOut.write(part);
+
+                    File file = new File(blockDir, blockName(DecryptUtils.getBlockId(storageId, hash, i)));
+                    writeFile(file, BLOCK_SIGN, body.toByteArray());
+
+                    out.writeLong(part.length);
+                    out.write(DigestUtils.sha256(part));
+                    out.writeLong(file.length());
+                    out.write(DigestUtils.sha256(Files.readAllBytes(file.toPath())));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            ++count;
+            return hash;
+        }
+
+        public Transaction addFile(String path, byte[] hash, long time) {
+            addPath(1, path, 0, hash, time);
+            return this;
+        }
+
+        public Transaction addDeleted(String path) {
+            addPath(2, path, 0, null, 0);
+            return this;
+        }
+
+        public Transaction addDirectory(String path) {
+            addPath(2, path, 1, null, 0);
+            return this;
+        }
+
+        private void addPath(int kind, String path, int type, byte[] hash, long time) {
+            try {
+                byte[] bs = path.getBytes(StandardCharsets.UTF_8);
+                out.writeByte(kind);
+                out.writeInt(bs.length);
+                out.write(bs);
+                out.writeInt(type);
+                if (kind == 1) {
+                    out.write(hash);
+                    out.writeLong(time);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            ++count;
+        }
+
+        public File commit() {
+            try {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                DataOutputStream metaOut = new DataOutputStream(body);
+                metaOut.write(storageId);
+                metaOut.writeLong(timestamp);
+                metaOut.writeLong(prevTimestamp);
+                metaOut.writeInt(count);
+                metaOut.write(entries.toByteArray());
+
+                File file = new File(metaDir, Long.toString(timestamp));
+                writeFile(file, META_SIGN, body.toByteArray());
+                prevTimestamp = timestamp;
+                return file;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.dreipic;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.dreipic.util.TestEncryptor;
+import org.testng.annotations.Test;
+
+public class VersionIndexTest {
+    private static final String[] NAMES = { "a", "a/x", "a/y", "a/b", "a/b/z", "c", "c/w", "d" };
+
+    @Test
+    public void testAgainstSnapshots() throws IOException {
+        try (TestStorage storage = TestStorage.create(null, 1000)) {
+            Random rnd = new Random(42);
+            for (int t = 0; t < 40; ++t) {
+                TestStorage.Transaction tx = storage.newTransaction(1000 + t * 10);
+                byte[] hash = tx.addData(TestEncryptor.randomBytes(t, 50));
+                for (int k = rnd.nextInt(4); k >= 0; --k) {
+                    String name = NAMES[rnd.nextInt(NAMES.length)];
+                    int op = rnd.nextInt(3);
+                    if (op == 0) {
+                        tx.addFile(name, hash, t);
+                    } else if (op == 1) {
+                        tx.addDirectory(name);
+                    } else {
+                        tx.addDeleted(name);
+                    }
+                }
+                tx.commit();
+            }
+
+            MetaStore store = DreipicVersions.loadStore(storage.metaDir, null);
+            VersionIndex index = VersionIndex.build(store);
+            Snapshots snapshots = new Snapshots(store);
+
+            for (String s : NAMES) {
+                int n = store.findName(s);
+                if (n == -1) {
+                    continue;
+                }
+
+                int count = 0;
+                for (int p = store.latestPath(n); p != -1; p = store.pathPrevVersion(p)) {
+                    ++count;
+                }
+                assertEquals(index.versionCount(n), count);
+                assertEquals(index.between(n, 0, Long.MAX_VALUE).length, count);
+
+                // Before the first transaction, then between and exactly at every transaction.
+                assertEquals(index.asOf(n, 999), -1);
+                for (int t = 0; t < store.txCount(); ++t) {
+                    long time = store.txTimestamp(t);
+                    assertEquals(index.asOf(n, time), snapshots.at(t).entry(n), s + " " + t);
+                    assertEquals(index.asOf(n, time + 5), snapshots.at(t).entry(n), s + " " + t);
+                }
+
+                for (int i = 0; i < count; ++i) {
+                    long time = index.versionTime(n, i);
+                    assertEquals(store.txTimestamp(store.pathTx(index.version(n, i))), time);
+                    assertEquals(index.floor(n, time), scan(index, n, time + 1));
+                    assertEquals(index.latestBefore(n, time), scan(index, n, time));
+                }
+            }
+
+            int x = store.findName("a/x");
+            long t5 = store.txTimestamp(5);
+            long t9 = store.txTimestamp(9);
+            for (int p : index.between(x, t5, t9)) {
+                long time = store.txTimestamp(store.pathTx(p));
+                assertEquals(time >= t5 && time < t9, true);
+            }
+        }
+    }
+
+    // The last version strictly before the time, the slow way.
+    private static int scan(VersionIndex index, int n, long time) {
+        int res = -1;
+        for (int i = 0; i < index.versionCount(n); ++i) {
+            if (index.versionTime(n, i) < time) {
+                res = index.version(n, i);
+            }
+        }
+        return res;
+    }
+}
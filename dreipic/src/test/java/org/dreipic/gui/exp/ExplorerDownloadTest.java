@@ -0,0 +1,65 @@
+package org.dreipic.gui.exp;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.dreipic.MetaStore;
+import org.dreipic.TestStorage;
+import org.dreipic.struct.MappedMetaFile;
+import org.dreipic.util.DecryptUtils;
+import org.dreipic.util.Decryptor;
+import org.dreipic.util.TestEncryptor;
+import org.testng.annotations.Test;
+
+public class ExplorerDownloadTest {
+    @Test
+    public void testDownloadFile() throws IOException {
+        byte[] key = TestEncryptor.newKey(3);
+        try (TestStorage storage = TestStorage.create(key, 1000)) {
+            byte[] data = TestEncryptor.randomBytes(1, 9500);
+            TestStorage.Transaction tx = storage.newTransaction(1000);
+            byte[] hash = tx.addData(data);
+            tx.addFile("photos/a.jpg", hash, 0);
+            File metaFile = tx.commit();
+
+            MetaStore store;
+            try (Decryptor decryptor = new Decryptor(key)) {
+                store = MetaStore.builder().add(1000, MappedMetaFile.load(metaFile, decryptor)).build();
+            }
+            int d = store.pathData(store.latestPath(store.findName("photos/a.jpg")));
+
+            // The server lays blocks out as /data/xx/rest-of-the-id.
+            File serverDir = new File(storage.root, "server");
+            String corruptPath = null;
+            for (int i = 0; i < 10; ++i) {
+                byte[] blockId = DecryptUtils.getBlockId(storage.storageId, hash, i);
+                String id = DatatypeConverter.printHexBinary(blockId).toLowerCase();
+                String path = "/data/" + id.substring(0, 2) + "/" + id.substring(2);
+                File file = new File(serverDir, path);
+                file.getParentFile().mkdirs();
+                Files.copy(new File(storage.blockDir, TestStorage.blockName(blockId)).toPath(), file.toPath());
+                if (i == 4) {
+                    corruptPath = path;
+                }
+            }
+
+            File tempFile = new File(storage.root, "download");
+            try (TestFtpServer server = new TestFtpServer(serverDir);
+                    FtpConnector.Pool pool = new FtpConnector.Pool(server::connect, 3))
+            {
+                server.corruptOnce(corruptPath);
+                // A budget of two blocks on three sessions.
+                ExplorerDownload.downloadFile(key, store, d, tempFile, pool, 4, 2000, new LogPanel(0));
+
+                assertEquals(Files.readAllBytes(tempFile.toPath()), data);
+                assertEquals(server.retrievals(corruptPath), 2);
+                assertEquals(server.retrievals(), 11);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.dreipic.gui.exp;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dreipic.util.OrderedWorkers;
+import org.dreipic.util.TestEncryptor;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+public class FtpConnectorTest {
+    private static final int FILES = 16;
+
+    private File dir;
+
+    @BeforeMethod
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("dreipic").toFile();
+    }
+
+    @AfterMethod
+    public void deleteDir() throws IOException {
+        MoreFiles.deleteRecursively(dir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+    @Test
+    public void testPoolTransfersInParallel() throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < FILES; ++i) {
+            File file = new File(dir, "data/" + i % 4 + "/" + i);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), TestEncryptor.randomBytes(i, 1000 + i * 100));
+            paths.add("/data/" + i % 4 + "/" + i);
+        }
+
+        assertEquals(peakTransfers(1, paths), 1);
+        assertEquals(peakTransfers(4, paths), 4);
+    }
+
+    @Test
+    public void testPrefetchOverlapsProcessing() throws IOException {
+        try (TestFtpServer server = new TestFtpServer(dir);
+                FtpConnector.Pool pool = new FtpConnector.Pool(server::connect, 1))
+        {
+            List<String> paths = new ArrayList<>();
+            for (int i = 0; i < FILES; ++i) {
+                Files.write(new File(dir, Integer.toString(i)).toPath(), TestEncryptor.randomBytes(i, 1000));
+                paths.add("/" + i);
+            }
+
+            // Even on one connection, the next file is requested while the consumer still holds this one.
+            int[] next = new int[1];
+            OrderedWorkers.map("Fetch", 1, 4, path -> 1000L, 4000, paths, path -> download(pool, path), data -> {
+                int i = next[0]++;
+                assertEquals(data, TestEncryptor.randomBytes(i, 1000));
+                if (i + 1 < paths.size()) {
+                    try {
+                        assertTrue(server.awaitRetrievals(i + 2), "" + i);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            assertEquals(next[0], paths.size());
+        }
+    }
+
+    @Test
+    public void testFailedSessionIsReplaced() throws IOException {
+        try (TestFtpServer server = new TestFtpServer(dir)) {
+            Files.write(new File(dir, "a").toPath(), TestEncryptor.randomBytes(1, 100));
+
+            try (FtpConnector.Pool pool = new FtpConnector.Pool(server::connect, 1)) {
+                assertEquals(server.logins(), 1);
+                try {
+                    download(pool, "/missing");
+                    fail();
+                } catch (IllegalStateException e) {
+                    // Expected.
+                }
+                assertEquals(download(pool, "/a"), TestEncryptor.randomBytes(1, 100));
+                assertEquals(server.logins(), 2);
+            }
+        }
+    }
+
+    private static byte[] download(FtpConnector.Pool pool, String path) {
+        return pool.use(ftp -> FtpConnector.retrieve(ftp, path, in -> {
+            try {
+                return ByteStreams.toByteArray(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }));
+    }
+
+    // Downloads the files in order over a pool; the server holds transfers back until all sessions are busy.
+    private int peakTransfers(int sessions, List<String> paths) throws IOException {
+        try (TestFtpServer server = new TestFtpServer(dir);
+                FtpConnector.Pool pool = new FtpConnector.Pool(server::connect, sessions))
+        {
+            server.setGate(sessions);
+            int[] next = new int[1];
+            OrderedWorkers.map("Fetch", sessions, 2 * sessions, paths, path -> download(pool, path), data -> {
+                int i = next[0]++;
+                assertEquals(data, TestEncryptor.randomBytes(i, 1000 + i * 100));
+            });
+            assertEquals(next[0], paths.size());
+            return server.peak();
+        }
+    }
+}
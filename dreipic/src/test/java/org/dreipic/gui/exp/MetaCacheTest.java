@@ -0,0 +1,106 @@
+package org.dreipic.gui.exp;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.dreipic.MetaStore;
+import org.dreipic.TestStorage;
+import org.dreipic.struct.MappedMetaFile;
+import org.dreipic.util.Decryptor;
+import org.dreipic.util.TestEncryptor;
+import org.testng.annotations.Test;
+
+import com.google.common.base.VerifyException;
+
+public class MetaCacheTest {
+    @Test
+    public void testMeta() throws IOException {
+        byte[] key = TestEncryptor.newKey(1);
+        try (TestStorage storage = TestStorage.create(key, 1000)) {
+            TestStorage.Transaction tx = storage.newTransaction(1000);
+            tx.addFile("dir/file", tx.addData(TestEncryptor.randomBytes(1, 1500)), 0);
+            File file = tx.commit();
+            byte[] data = Files.readAllBytes(file.toPath());
+
+            MetaCache cache = new MetaCache(new File(storage.root, "cache"), key);
+            cache.putMeta(1000, data.length, new ByteArrayInputStream(data));
+            assertTrue(cache.hasMeta(1000, data.length));
+            assertFalse(cache.hasMeta(1000, data.length + 1));
+            assertFalse(cache.hasMeta(1001, data.length));
+
+            // A transfer that is shorter or longer than listed leaves nothing behind.
+            for (int size : new int[] { data.length - 1, data.length + 1 }) {
+                try {
+                    cache.putMeta(1001, size, new ByteArrayInputStream(data));
+                    fail();
+                } catch (VerifyException e) {
+                    // Expected.
+                }
+                assertFalse(cache.metaFile(1001).exists());
+            }
+
+            try (Decryptor decryptor = new Decryptor(key)) {
+                MappedMetaFile expected = MappedMetaFile.load(file, decryptor);
+                MappedMetaFile meta = cache.loadMeta(1000, decryptor);
+                assertEquals(meta.timestamp, expected.timestamp);
+                assertEquals(meta.entryCount, expected.entryCount);
+                assertEquals(meta.storageId(), expected.storageId());
+            }
+            assertEquals(new File(storage.root, "cache/meta").list(), new String[] { "1000" });
+        }
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        try (TestStorage storage = TestStorage.create(null, 1000)) {
+            long[] txs = new long[3];
+            long[] sizes = new long[3];
+            MetaStore.Builder builder = MetaStore.builder();
+            for (int t = 0; t < 3; ++t) {
+                TestStorage.Transaction tx = storage.newTransaction(1000 + t);
+                tx.addFile("dir/file" + t, tx.addData(TestEncryptor.randomBytes(t, 1500)), t);
+                File file = tx.commit();
+                txs[t] = 1000 + t;
+                sizes[t] = file.length();
+                builder.add(txs[t], MappedMetaFile.map(file));
+            }
+            MetaStore store = builder.build();
+
+            File dir = new File(storage.root, "cache");
+            byte[] dataKey = TestEncryptor.newKey(1);
+            MetaCache cache = new MetaCache(dir, dataKey);
+            assertNull(cache.readIndex());
+
+            cache.writeIndex(txs, sizes, store);
+            MetaCache.Index index = cache.readIndex();
+            assertNotNull(index);
+            assertEquals(index.txs, txs);
+            MetaStore read = index.builder.build();
+            assertEquals(read.txCount(), 3);
+            assertEquals(read.pathCount(), store.pathCount());
+            assertEquals(read.name(read.pathName(read.latestPath(read.findName("dir/file2")))), "dir/file2");
+
+            // The same transactions, more of them, a changed size, a missing transaction.
+            assertEquals(index.matchingPrefix(txs, sizes), 3);
+            assertEquals(index.matchingPrefix(new long[] { 1000, 1001, 1002, 1003 }, new long[] { sizes[0], sizes[1], sizes[2], 9 }), 3);
+            assertEquals(index.matchingPrefix(txs, new long[] { sizes[0], sizes[1] + 1, sizes[2] }), -1);
+            assertEquals(index.matchingPrefix(new long[] { 1000, 1002 }, new long[] { sizes[0], sizes[2] }), -1);
+            assertEquals(index.matchingPrefix(new long[] { 1000, 1002, 1003 }, new long[] { sizes[0], sizes[2], 9 }), -1);
+
+            assertNull(new MetaCache(dir, TestEncryptor.newKey(2)).readIndex());
+
+            // Authentic, but not an index this code can read.
+            cache.writeIndex(new byte[] { 0, 0, 0, 1, 7 });
+            assertNull(cache.readIndex());
+        }
+    }
+}
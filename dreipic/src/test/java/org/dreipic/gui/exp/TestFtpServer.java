@@ -0,0 +1,207 @@
+package org.dreipic.gui.exp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+
+import com.google.common.base.Preconditions;
+
+// A plain FTP server serving files from a directory, just enough for FTPClient logins and passive RETRs. It records
+// how many transfers ran at once, and can hold transfers back until enough of them run in parallel.
+final class TestFtpServer implements AutoCloseable {
+    private static final long GATE_TIMEOUT_MILLIS = 10_000;
+
+    private final File root;
+    private final ServerSocket server;
+    private final Thread acceptThread;
+    private final AtomicInteger logins;
+
+    private final Map<String, Integer> retrievals;
+    private final Set<String> corrupted;
+    private int gate;
+    private int active;
+    private int peak;
+
+    TestFtpServer(File root) throws IOException {
+        this.root = root;
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        logins = new AtomicInteger();
+        retrievals = new HashMap<>();
+        corrupted = new HashSet<>();
+
+        acceptThread = new Thread(this::accept);
+        acceptThread.setName("TestFtpServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    int logins() {
+        return logins.get();
+    }
+
+    // Every transfer waits, up to a timeout, until this many run at once.
+    synchronized void setGate(int gate) {
+        this.gate = gate;
+    }
+
+    // The next transfer of the path sends the file with one byte changed.
+    synchronized void corruptOnce(String path) {
+        corrupted.add(path);
+    }
+
+    synchronized int peak() {
+        return peak;
+    }
+
+    synchronized int retrievals(String path) {
+        return retrievals.getOrDefault(path, 0);
+    }
+
+    synchronized int retrievals() {
+        return retrievals.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    // Whether at least n transfers were started, waiting up to the timeout.
+    synchronized boolean awaitRetrievals(int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + GATE_TIMEOUT_MILLIS;
+        for (long now; retrievals() < n && (now = System.currentTimeMillis()) < deadline;) {
+            wait(deadline - now);
+        }
+        return retrievals() >= n;
+    }
+
+    FTPClient connect() {
+        try {
+            FTPClient ftp = new FTPClient();
+            ftp.connect(server.getInetAddress(), server.getLocalPort());
+            ftp.enterLocalPassiveMode();
+            Preconditions.checkState(ftp.login("test", "test"), "Failed to login");
+            ftp.setFileType(FTP.BINARY_FILE_TYPE);
+            return ftp;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread thread = new Thread(() -> serve(socket));
+            thread.setName("TestFtpSession");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+                PrintWriter out = new PrintWriter(s.getOutputStream(), true))
+        {
+            ServerSocket passive = null;
+            reply(out, "220 Ready");
+            for (String line; (line = in.readLine()) != null;) {
+                int idx = line.indexOf(' ');
+                String cmd = (idx == -1 ? line : line.substring(0, idx)).toUpperCase();
+                String arg = idx == -1 ? "" : line.substring(idx + 1);
+                switch (cmd) {
+                case "USER":
+                    reply(out, "331 Password required");
+                    break;
+                case "PASS":
+                    logins.incrementAndGet();
+                    reply(out, "230 Logged in");
+                    break;
+                case "TYPE":
+                    reply(out, "200 Type set");
+                    break;
+                case "PASV":
+                    passive = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                    int port = passive.getLocalPort();
+                    reply(out, String.format("227 Entering Passive Mode (127,0,0,1,%d,%d)", port >> 8, port & 0xFF));
+                    break;
+                case "RETR":
+                    Preconditions.checkState(passive != null, "RETR without PASV");
+                    try (ServerSocket p = passive; Socket data = p.accept()) {
+                        passive = null;
+                        File file = new File(root, arg);
+                        if (!file.isFile()) {
+                            reply(out, "550 No such file");
+                            break;
+                        }
+                        boolean corrupt = begin(arg);
+                        try {
+                            byte[] content = Files.readAllBytes(file.toPath());
+                            if (corrupt) {
+                                content[content.length / 2] ^= 0x40;
+                            }
+                            reply(out, "150 Sending");
+                            try (OutputStream dataOut = data.getOutputStream()) {
+                                dataOut.write(content);
+                            }
+                        } finally {
+                            end();
+                        }
+                    }
+                    reply(out, "226 Done");
+                    break;
+                case "QUIT":
+                    reply(out, "221 Bye");
+                    return;
+                default:
+                    reply(out, "502 Not implemented");
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client went away.
+        }
+    }
+
+    private synchronized boolean begin(String path) throws InterruptedException {
+        retrievals.merge(path, 1, Integer::sum);
+        peak = Math.max(peak, ++active);
+        notifyAll();
+
+        long deadline = System.currentTimeMillis() + GATE_TIMEOUT_MILLIS;
+        for (long now; peak < gate && (now = System.currentTimeMillis()) < deadline;) {
+            wait(deadline - now);
+        }
+        return corrupted.remove(path);
+    }
+
+    private synchronized void end() {
+        --active;
+    }
+
+    private static void reply(PrintWriter out, String line) {
+        out.print(line + "\r\n");
+        out.flush();
+    }
+}
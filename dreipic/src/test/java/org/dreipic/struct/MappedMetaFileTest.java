@@ -0,0 +1,135 @@
+package org.dreipic.struct;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.dreipic.util.TestEncryptor;
+import org.testng.annotations.Test;
+
+import com.google.common.base.VerifyException;
+
+public class MappedMetaFileTest {
+    @Test
+    public void testSameAsStructMeta() throws IOException {
+        byte[] bytes = newMeta();
+        StructMeta exp = new StructMeta(new DataInputStream(new ByteArrayInputStream(bytes)));
+        MappedMetaFile act = MappedMetaFile.parse(ByteBuffer.wrap(bytes));
+
+        assertEquals(act.timestamp, exp.timestamp);
+        assertEquals(act.prevTimestamp, exp.prevTimestamp);
+        assertEquals(act.entryCount, exp.datas.size() + exp.paths.size());
+        assertEquals(act.storageId(), ByteBuffer.wrap(exp.storageId));
+        act.verifyEnd();
+
+        int d = 0;
+        int p = 0;
+        byte[] hash = new byte[32];
+        MappedMetaFile.Entry entry = act.entries();
+        while (entry.next()) {
+            if (entry.isData()) {
+                StructMetaData data = exp.datas.get(d++);
+                assertEquals(entry.size(), data.size);
+                assertEquals(entry.hash(), ByteBuffer.wrap(data.hash));
+                entry.getHash(hash);
+                assertEquals(hash, data.hash);
+                assertEquals(entry.blockCount(), data.blocks.size());
+                for (int i = 0; i < data.blocks.size(); ++i) {
+                    StructBlockInfo block = data.blocks.get(i);
+                    assertEquals(entry.blockInnerSize(i), block.innerSize);
+                    assertEquals(entry.blockInnerHash(i), ByteBuffer.wrap(block.innerHash));
+                    assertEquals(entry.blockOuterSize(i), block.outerSize);
+                    assertEquals(entry.blockOuterHash(i), ByteBuffer.wrap(block.outerHash));
+                }
+            } else {
+                StructMetaPath path = exp.paths.get(p++);
+                assertEquals(entry.path(), path.path);
+                assertEquals(entry.type(), path.type);
+                if (path.hash != null) {
+                    assertEquals(entry.hash(), ByteBuffer.wrap(path.hash));
+                    assertEquals(entry.time() == 0 ? null : entry.time(), path.time);
+                }
+            }
+        }
+        assertEquals(d, exp.datas.size());
+        assertEquals(p, exp.paths.size());
+        assertFalse(entry.next());
+    }
+
+    @Test(expectedExceptions = VerifyException.class)
+    public void testTruncated() throws IOException {
+        byte[] bytes = newMeta();
+        MappedMetaFile.parse(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 3))).verifyEnd();
+    }
+
+    @Test
+    public void testVisitor() throws IOException {
+        int[] counts = new int[2];
+        MappedMetaFile.parse(ByteBuffer.wrap(newMeta())).accept(new MappedMetaFile.Visitor() {
+            @Override
+            public void data(MappedMetaFile.Entry entry) {
+                assertTrue(entry.isData());
+                ++counts[0];
+            }
+
+            @Override
+            public void path(MappedMetaFile.Entry entry) {
+                assertFalse(entry.isData());
+                ++counts[1];
+            }
+        });
+        assertEquals(counts, new int[]{ 2, 4 });
+    }
+
+    private static byte[] newMeta() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xB5624A23);
+        out.write(TestEncryptor.randomBytes(1, 32));
+        out.writeLong(2000);
+        out.writeLong(1000);
+        out.writeInt(6);
+
+        for (int k = 0; k < 2; ++k) {
+            out.writeByte(0);
+            out.writeLong(12345 + k);
+            out.write(TestEncryptor.randomBytes(10 + k, 32));
+            out.writeInt(k + 1);
+            for (int i = 0; i <= k; ++i) {
+                out.writeLong(1000 + i);
+                out.write(TestEncryptor.randomBytes(20 + i, 32));
+                out.writeLong(1100 + i);
+                out.write(TestEncryptor.randomBytes(30 + i, 32));
+            }
+        }
+
+        writePath(out, 1, "dir/a.jpg", 0, TestEncryptor.randomBytes(10, 32), 1500000000000L);
+        writePath(out, 1, "dir/b.zip", 1, TestEncryptor.randomBytes(11, 32), 0);
+        writePath(out, 2, "old", 0, null, 0);
+        writePath(out, 2, "déjà", 1, null, 0);
+        return bytes.toByteArray();
+    }
+
+    private static void writePath(DataOutputStream out, int kind, String path, int type, byte[] hash, long time)
+            throws IOException
+    {
+        byte[] bs = path.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(kind);
+        out.writeInt(bs.length);
+        out.write(bs);
+        out.writeInt(type);
+        if (hash != null) {
+            out.write(hash);
+            out.writeLong(time);
+        }
+    }
+}
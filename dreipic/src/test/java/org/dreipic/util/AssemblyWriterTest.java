@@ -0,0 +1,84 @@
+package org.dreipic.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+public class AssemblyWriterTest {
+    @Test
+    public void testOutOfOrderWrites() throws IOException {
+        byte[] data = TestEncryptor.randomBytes(1, 1_000_003);
+        File file = File.createTempFile("dreipic", ".tmp");
+        try {
+            List<Integer> offsets = new ArrayList<>();
+            for (int ofs = 0; ofs < data.length; ofs += 4096) {
+                offsets.add(ofs);
+            }
+            Collections.shuffle(offsets, new Random(2));
+
+            AtomicInteger next = new AtomicInteger();
+            try (AssemblyWriter writer = new AssemblyWriter(file, data.length)) {
+                assertEquals(file.length(), data.length);
+
+                ThreadUtils.runWorkers("Test", 4, () -> {
+                    for (;;) {
+                        int idx = next.getAndIncrement();
+                        if (idx >= offsets.size()) {
+                            break;
+                        }
+                        int ofs = offsets.get(idx);
+                        writer.write(ofs, ByteBuffer.wrap(data, ofs, Math.min(4096, data.length - ofs)));
+                    }
+                });
+
+                assertTrue(writer.isComplete());
+                assertEquals(writer.sha256(), DigestUtils.sha256(data));
+            }
+
+            assertEquals(Files.readAllBytes(file.toPath()), data);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCoverage() throws IOException {
+        File file = File.createTempFile("dreipic", ".tmp");
+        try (AssemblyWriter writer = new AssemblyWriter(file, 10)) {
+            // A block written twice adds up to the size, but [6, 8) is still a gap.
+            writer.write(0, ByteBuffer.allocate(3));
+            writer.write(3, ByteBuffer.allocate(3));
+            writer.write(0, ByteBuffer.allocate(3));
+            writer.write(8, ByteBuffer.allocate(2));
+            assertFalse(writer.isComplete());
+            writer.write(5, ByteBuffer.allocate(2));
+            writer.write(6, ByteBuffer.allocate(3));
+            assertTrue(writer.isComplete());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testWriteOutsideOfData() throws IOException {
+        File file = File.createTempFile("dreipic", ".tmp");
+        try (AssemblyWriter writer = new AssemblyWriter(file, 10)) {
+            assertFalse(writer.isComplete());
+            writer.write(8, ByteBuffer.allocate(3));
+        } finally {
+            file.delete();
+        }
+    }
+}
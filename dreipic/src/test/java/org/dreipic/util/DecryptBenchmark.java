@@ -0,0 +1,88 @@
+package org.dreipic.util;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.io.ByteStreams;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecryptBenchmark {
+    @Param({ "65536", "4194304" })
+    public int size;
+
+    private byte[] key;
+    private Decryptor decryptor;
+    private byte[] enc;
+    private ByteBuffer directIn;
+    private ByteBuffer directOut;
+
+    @Setup
+    public void setup() {
+        key = TestEncryptor.newKey(1);
+        enc = TestEncryptor.encrypt(key, 1, TestEncryptor.randomBytes(2, size));
+
+        directIn = ByteBuffer.allocateDirect(enc.length);
+        directIn.put(enc);
+        directOut = ByteBuffer.allocateDirect(size + 4);
+        decryptor = new Decryptor(key);
+    }
+
+    @TearDown
+    public void tearDown() {
+        decryptor.close();
+    }
+
+    @Benchmark
+    public void stream() {
+        DecryptUtils.decryptData(key, new ByteArrayInputStream(enc), ByteStreams.nullOutputStream());
+    }
+
+    @Benchmark
+    public ByteBuffer heapBuffer() {
+        ByteBuffer out = ByteBuffer.allocate(size + 4);
+        DecryptUtils.decryptData(key, ByteBuffer.wrap(enc), out);
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuffer directBuffer() {
+        directIn.clear();
+        directOut.clear();
+        DecryptUtils.decryptData(key, directIn, directOut);
+        return directOut;
+    }
+
+    @Benchmark
+    public ByteBuffer reusedDecryptor() {
+        directIn.clear();
+        directOut.clear();
+        decryptor.decryptData(directIn, directOut);
+        return directOut;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DecryptBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,133 @@
+package org.dreipic.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.VerifyException;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+
+public class DecryptUtilsTest {
+    private static final int SIGN = 0x12345678;
+
+    @Test
+    public void testDecryptData() {
+        byte[] key = TestEncryptor.newKey(1);
+        for (int len : new int[]{ 0, 1, 7, 8, 9, 1000, 3 * 1024 * 1024 + 5 }) {
+            byte[] data = TestEncryptor.randomBytes(len, len);
+            byte[] enc = TestEncryptor.encrypt(key, SIGN, data);
+
+            byte[] dec = DecryptUtils.decryptData(key, enc);
+            assertEquals(dec, Bytes.concat(Ints.toByteArray(SIGN), data));
+        }
+    }
+
+    @Test
+    public void testDecryptDataToChannel() {
+        byte[] key = TestEncryptor.newKey(2);
+        byte[] data = TestEncryptor.randomBytes(3, 100_000);
+        byte[] enc = TestEncryptor.encrypt(key, SIGN, data);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DecryptUtils.decryptData(key, new ByteArrayInputStream(enc), Channels.newChannel(out));
+        assertEquals(out.toByteArray(), Bytes.concat(Ints.toByteArray(SIGN), data));
+    }
+
+    @Test
+    public void testDecryptBuffer() {
+        byte[] key = TestEncryptor.newKey(10);
+        for (int len : new int[]{ 0, 5, 300_000, 2 * 1024 * 1024 + 3 }) {
+            byte[] data = TestEncryptor.randomBytes(len + 1, len);
+            byte[] enc = TestEncryptor.encrypt(key, SIGN, data);
+            byte[] exp = Bytes.concat(Ints.toByteArray(SIGN), data);
+
+            ByteBuffer in = ByteBuffer.allocateDirect(enc.length);
+            in.put(enc);
+            in.flip();
+            ByteBuffer out = ByteBuffer.allocateDirect(exp.length);
+            DecryptUtils.decryptData(key, in, out);
+            assertFalse(in.hasRemaining());
+            assertFalse(out.hasRemaining());
+
+            out.flip();
+            byte[] act = new byte[out.remaining()];
+            out.get(act);
+            assertEquals(act, exp);
+
+            ByteArrayOutputStream chOut = new ByteArrayOutputStream();
+            DecryptUtils.decryptData(key, ByteBuffer.wrap(enc), Channels.newChannel(chOut));
+            assertEquals(chOut.toByteArray(), exp);
+        }
+    }
+
+    @Test
+    public void testDecryptFile() throws IOException {
+        byte[] key = TestEncryptor.newKey(4);
+        byte[] data = TestEncryptor.randomBytes(5, 12345);
+        byte[] enc = TestEncryptor.encrypt(key, SIGN, data);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(DecryptUtils.decryptFile(key, new ByteArrayInputStream(enc), out));
+        byte[] dec = out.toByteArray();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(dec));
+        assertEquals(in.readInt(), DecryptUtils.DECRYPT_SIGN);
+        assertEquals(in.readInt(), SIGN);
+        assertEquals(ByteStreams.toByteArray(in), data);
+
+        assertFalse(DecryptUtils.decryptFile(key, new ByteArrayInputStream(dec), new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void testOpenData() throws IOException {
+        byte[] key = TestEncryptor.newKey(6);
+        byte[] data = TestEncryptor.randomBytes(7, 54321);
+        byte[] enc = TestEncryptor.encrypt(key, SIGN, data);
+
+        try (InputStream in = DecryptUtils.openData(key, new ByteArrayInputStream(enc))) {
+            DataInputStream dataIn = new DataInputStream(in);
+            assertEquals(dataIn.readInt(), SIGN);
+            assertEquals(dataIn.read(), data[0] & 0xFF);
+            byte[] rest = ByteStreams.toByteArray(dataIn);
+            assertEquals(rest.length, data.length - 1);
+            assertEquals(rest[rest.length - 1], data[data.length - 1]);
+        }
+    }
+
+    @Test
+    public void testDecryptorReuse() throws IOException {
+        byte[] key = TestEncryptor.newKey(11);
+        try (Decryptor decryptor = new Decryptor(key)) {
+            for (int i = 0; i < 20; ++i) {
+                byte[] data = TestEncryptor.randomBytes(i, i * 997);
+                byte[] enc = TestEncryptor.encrypt(key, SIGN + i, data);
+                byte[] exp = Bytes.concat(Ints.toByteArray(SIGN + i), data);
+
+                if (i % 2 == 0) {
+                    assertEquals(decryptor.decryptData(enc), exp);
+                } else {
+                    InputStream in = decryptor.openData(new ByteArrayInputStream(enc));
+                    assertEquals(ByteStreams.toByteArray(in), exp);
+                }
+            }
+        }
+    }
+
+    @Test(expectedExceptions = VerifyException.class)
+    public void testWrongKey() {
+        byte[] enc = TestEncryptor.encrypt(TestEncryptor.newKey(8), SIGN, new byte[100]);
+        DecryptUtils.decryptData(TestEncryptor.newKey(9), enc);
+    }
+}
@@ -0,0 +1,49 @@
+package org.dreipic.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.google.common.primitives.Ints;
+
+public class FixedKeyIntMapTest {
+    @Test
+    public void testPutGet() {
+        FixedKeyIntMap map = new FixedKeyIntMap(19, 0);
+        Map<String, Integer> exp = new HashMap<>();
+
+        for (int i = 0; i < 10_000; ++i) {
+            byte[] key = Arrays.copyOf(DigestUtils.sha256(Ints.toByteArray(i % 7000)), 19);
+            int old = map.put(key, i);
+            Integer expOld = exp.put(Arrays.toString(key), i);
+            assertEquals(old, expOld == null ? -1 : expOld.intValue());
+        }
+
+        assertEquals(map.size(), 7000);
+        for (int i = 0; i < 7000; ++i) {
+            byte[] key = Arrays.copyOf(DigestUtils.sha256(Ints.toByteArray(i)), 19);
+            assertEquals(map.get(key), exp.get(Arrays.toString(key)).intValue());
+
+            byte[] shifted = new byte[key.length + 3];
+            System.arraycopy(key, 0, shifted, 3, key.length);
+            assertEquals(map.get(shifted, 3), map.get(key));
+        }
+
+        assertFalse(map.containsKey(new byte[19]));
+        map.put(new byte[19], 0);
+        assertTrue(map.containsKey(new byte[19]));
+
+        int[] count = new int[1];
+        map.forEach((keys, off, value) -> {
+            assertEquals(map.get(Arrays.copyOfRange(keys, off, off + 19)), value);
+            ++count[0];
+        });
+        assertEquals(count[0], map.size());
+    }
+}
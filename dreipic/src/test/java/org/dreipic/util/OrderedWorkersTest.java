@@ -0,0 +1,89 @@
+package org.dreipic.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.testng.annotations.Test;
+
+public class OrderedWorkersTest {
+    @Test
+    public void testOrder() {
+        List<Integer> items = IntStream.range(0, 500).boxed().collect(Collectors.toList());
+        AtomicInteger started = new AtomicInteger();
+        List<Integer> out = new ArrayList<>();
+
+        OrderedWorkers.map("Test", 8, 5, items, i -> {
+            started.incrementAndGet();
+            // Later items often finish first.
+            sleep(new Random(i).nextInt(3));
+            return i * 3;
+        }, r -> {
+            // Nothing is started beyond the window ahead of the consumer.
+            assertTrue(started.get() <= out.size() + 1 + 5, started.get() + " " + out.size());
+            out.add(r);
+        });
+
+        assertEquals(out.size(), 500);
+        for (int i = 0; i < out.size(); ++i) {
+            assertEquals((int) out.get(i), i * 3);
+        }
+
+        assertEquals(OrderedWorkers.mapAll("Test", 3, items, i -> -i).get(499), Integer.valueOf(-499));
+        assertEquals(OrderedWorkers.mapAll("Test", 3, new ArrayList<Integer>(), i -> i).size(), 0);
+    }
+
+    @Test
+    public void testBudget() {
+        List<Integer> items = IntStream.range(0, 300).boxed().collect(Collectors.toList());
+        // Mostly light items, with a few heavier than the whole budget.
+        long[] weights = new Random(7).longs(items.size(), 1, 10).toArray();
+        weights[100] = 50;
+        weights[101] = 50;
+        long[] started = new long[1];
+        List<Integer> out = new ArrayList<>();
+
+        OrderedWorkers.map("Test", 8, 100, i -> weights[i], 20, items, i -> {
+            synchronized (started) {
+                started[0] += weights[i];
+                // Everything started and not yet consumed, including what the consumer holds.
+                assertTrue(started[0] <= 20 || started[0] == weights[i], i + " " + started[0]);
+            }
+            sleep(new Random(i).nextInt(2));
+            return i;
+        }, r -> {
+            synchronized (started) {
+                started[0] -= weights[r];
+                out.add(r);
+            }
+        });
+
+        assertEquals(out, items);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "boom")
+    public void testFailure() {
+        List<Integer> items = IntStream.range(0, 100_000).boxed().collect(Collectors.toList());
+        OrderedWorkers.map("Test", 4, 16, items, i -> {
+            if (i == 50) {
+                throw new IllegalArgumentException("boom");
+            }
+            return i;
+        }, r -> {
+        });
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.dreipic.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class StageTimesTest {
+    @Test
+    public void testReport() throws IOException {
+        StageTimes times = new StageTimes();
+        StageTimes.Stage read = times.stage("Read", 2);
+        StageTimes.Stage write = times.stage("Write", 1);
+
+        byte[] data = TestEncryptor.randomBytes(1, 100000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (StageTimes.TimedInputStream in = new StageTimes.TimedInputStream(new ByteArrayInputStream(data));
+                StageTimes.TimedOutputStream out = new StageTimes.TimedOutputStream(bytes))
+        {
+            ByteStreams.copy(in, out);
+            read.add(in.nanos());
+            write.add(out.nanos());
+            assertTrue(in.nanos() > 0);
+            assertTrue(out.nanos() > 0);
+        }
+        assertEquals(bytes.toByteArray(), data);
+
+        read.add(2_000_000_000L);
+        read.add(-5);
+        assertTrue(read.busyTime() >= 2_000_000_000L);
+
+        List<String> report = times.report();
+        assertEquals(report.size(), 2);
+        assertTrue(report.get(0).startsWith("Read: 2.0 s busy, "), report.get(0));
+        assertTrue(report.get(0).endsWith(" of 2 workers"), report.get(0));
+        assertTrue(report.get(1).startsWith("Write: 0.0 s busy, "), report.get(1));
+    }
+}
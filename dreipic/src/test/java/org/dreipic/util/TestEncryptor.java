@@ -0,0 +1,89 @@
+package org.dreipic.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public final class TestEncryptor {
+    private static final byte[] ENCRYPTION_PREFIX = { 51, 53, 57 };
+    private static final byte[] ENCRYPTION_SUFFIX = { 97, 101, 113 };
+
+    private TestEncryptor() {
+    }
+
+    public static byte[] newKey(long seed) {
+        return randomBytes(seed, 32);
+    }
+
+    public static byte[] randomBytes(long seed, int len) {
+        byte[] bs = new byte[len];
+        new Random(seed).nextBytes(bs);
+        return bs;
+    }
+
+    public static byte[] encrypt(byte[] key, int sign, byte[] data) {
+        try {
+            return encrypt0(key, sign, data);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encrypt0(byte[] key, int sign, byte[] data) throws IOException, GeneralSecurityException {
+        byte[] salt = randomBytes(sign ^ data.length, 32);
+
+        MessageDigest md = DigestUtils.newSha256();
+        md.update(ENCRYPTION_PREFIX);
+        md.update(key);
+        md.update(ENCRYPTION_SUFFIX);
+        md.update(salt);
+        byte[] encKey = md.digest();
+
+        md.update(encKey);
+        md.update(salt);
+        byte[] digest = md.digest();
+        md.update(digest);
+        digest = md.digest();
+        md.update(digest);
+        digest = md.digest();
+        byte[] initVector = Arrays.copyOf(digest, 16);
+
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(encKey, "AES"), new IvParameterSpec(initVector));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(sign);
+        dataOut.write(salt);
+
+        try (OutputStream cipOut = new CipherOutputStream(out, cipher)) {
+            byte[] test = randomBytes(sign, 16);
+            cipOut.write(test);
+            cipOut.write(DigestUtils.sha256(test), 0, 4);
+
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            DeflaterOutputStream defOut = new DeflaterOutputStream(cipOut, deflater);
+            defOut.write(data);
+            defOut.write(DigestUtils.sha256(data), 0, 8);
+            defOut.finish();
+            deflater.end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return out.toByteArray();
+    }
+}